@@ -0,0 +1,116 @@
+package com.example.record.benchmark;
+
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.ChangeLog;
+import com.example.record.repository.DataVersion;
+import com.example.record.repository.FileWriteLog;
+import com.example.record.repository.ImageStore;
+import com.example.record.repository.MovementHistory;
+import com.example.record.repository.ProductRepository;
+import com.example.record.repository.RepositoryMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试数据集：在临时目录下按线上格式生成分类和商品 JSON 文件，再用其创建仓库。
+ * 每个分类约 100 个商品，至少 10 个分类。
+ */
+final class BenchmarkData {
+
+    final Path dir;
+    final int products;
+    final int categories;
+    final CategoryRepository categoryRepo;
+    final ProductRepository productRepo;
+    final MovementHistory movements;
+    final FileWriteLog writeLog;
+    final long firstProductId;
+
+    private BenchmarkData(Path dir, int products, int categories, CategoryRepository categoryRepo,
+            ProductRepository productRepo, MovementHistory movements, FileWriteLog writeLog, long firstProductId) {
+        this.dir = dir;
+        this.products = products;
+        this.categories = categories;
+        this.categoryRepo = categoryRepo;
+        this.productRepo = productRepo;
+        this.movements = movements;
+        this.writeLog = writeLog;
+        this.firstProductId = firstProductId;
+    }
+
+    static BenchmarkData create(int products, String storageMode) throws IOException {
+        Path dir = Files.createTempDirectory("record-bench");
+        int categories = Math.max(10, products / 100);
+        long firstProductId = 1000;
+        generate(dir, products, categories, firstProductId);
+
+        String dataDir = dir.toString();
+        // 分类刷盘间隔、快照间隔设长一些，避免后台线程干扰测量
+        RepositoryMetrics metrics = new RepositoryMetrics(new SimpleMeterRegistry());
+        ImageStore imageStore = new ImageStore(dir.resolve("uploads").toString(), DataSize.ofMegabytes(10), metrics);
+        ChangeLog changeLog = new ChangeLog(new DataVersion(), 10000);
+        FileWriteLog writeLog = new FileWriteLog(dataDir, 60, metrics);
+        CategoryRepository categoryRepo = new CategoryRepository(60, 0, dataDir, imageStore, changeLog, writeLog,
+                metrics);
+        MovementHistory movements = new MovementHistory(dataDir, 8192, 60, 400, 31);
+        ProductRepository productRepo = new ProductRepository(categoryRepo, imageStore, storageMode, 60, 0, dataDir,
+                changeLog, movements, writeLog, metrics);
+        return new BenchmarkData(dir, products, categories, categoryRepo, productRepo, movements, writeLog,
+                firstProductId);
+    }
+
+    long productId(int i) {
+        return firstProductId + i;
+    }
+
+    long categoryId(int i) {
+        return 1 + i;
+    }
+
+    void close() throws IOException {
+        productRepo.close();
+        categoryRepo.close();
+        movements.close();
+        writeLog.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    static void generate(Path dir, int products, int categories, long firstProductId) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        File categoryDir = dir.resolve("categories").toFile();
+        categoryDir.mkdirs();
+        for (int c = 1; c <= categories; c++) {
+            Category category = new Category();
+            category.setId((long) c);
+            category.setName("分类" + c);
+            category.setImagePath("/uploads/category/" + c + ".jpg");
+            category.setTotalCount(0L);
+            mapper.writeValue(new File(categoryDir, c + ".json"), category);
+        }
+
+        for (int i = 0; i < products; i++) {
+            long cid = 1 + (i % categories);
+            Product p = new Product();
+            p.setId(firstProductId + i);
+            p.setCategoryId(cid);
+            p.setName("商品" + i);
+            p.setImagePath("/uploads/product/" + i + ".jpg");
+            p.setStock(1_000_000L);
+            File productDir = dir.resolve("products").resolve("category_" + cid).toFile();
+            productDir.mkdirs();
+            mapper.writeValue(new File(productDir, p.getId() + ".json"), p);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.record.benchmark;
+
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import com.example.record.model.ProductSearchResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProductRepository / CategoryRepository 读写路径的单线程吞吐量。
+ * 运行：mvn -Pjmh test-compile exec:exec -Djmh.args="RepositoryBenchmark -p products=10000 -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int products;
+
+    @Param({ "json", "journal", "mmap" })
+    public String storage;
+
+    private BenchmarkData data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = BenchmarkData.create(products, storage);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        data.close();
+    }
+
+    @Benchmark
+    public Product findById() {
+        return data.productRepo.findById(data.productId(ThreadLocalRandom.current().nextInt(data.products)));
+    }
+
+    @Benchmark
+    public List<Product> findByCategory() {
+        return data.productRepo.findByCategory(data.categoryId(ThreadLocalRandom.current().nextInt(data.categories)));
+    }
+
+    @Benchmark
+    public List<Product> findAll() {
+        return data.productRepo.findAll();
+    }
+
+    @Benchmark
+    public Product save() {
+        long cid = data.categoryId(ThreadLocalRandom.current().nextInt(data.categories));
+        return data.productRepo.save(cid, "新商品", "/uploads/product/new.jpg", 10L);
+    }
+
+    @Benchmark
+    public Product update() {
+        Product p = data.productRepo.findById(data.productId(ThreadLocalRandom.current().nextInt(data.products)));
+        p.setName("改名" + p.getId());
+        data.productRepo.update(p);
+        return p;
+    }
+
+    // 名称形如 "商品123"：前缀命中全部商品，带数字的查询只命中少数商品
+    @Benchmark
+    public ProductSearchResult searchCommon() {
+        return data.productRepo.search("商品", 0, 20);
+    }
+
+    @Benchmark
+    public ProductSearchResult searchSelective() {
+        return data.productRepo.search("商品" + ThreadLocalRandom.current().nextInt(data.products), 0, 20);
+    }
+
+    @Benchmark
+    public List<Category> categoryFindAll() {
+        return data.categoryRepo.findAll();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.record.benchmark;
+
+import com.example.record.Application;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 整个应用的 HTTP 压测：64 个客户端线程并发请求 /api/product/in。
+ * journal 模式每次入库等库存日志的组提交，json 模式等商品JSON的写入日志组提交，mmap 模式只写页缓存、不等 fsync。
+ * Tomcat 平台线程池限制为 8 个，对比 virtualThreads=false/true：
+ * 平台线程模式下同时在途的请求最多 8 个，每次组提交最多合并 8 条记录；
+ * 虚拟线程模式下 64 个请求都能同时等待同一次 fsync，吞吐随客户端并发增长。
+ * 请求路径上等待 I/O 的锁都是 ReentrantLock，虚拟线程等待时会让出载体线程；
+ * 某种模式下如果还有 synchronized 包住阻塞 I/O，该模式虚拟线程的吞吐会退回平台线程的水平。
+ * api=rx/product 时请求响应式接口，等待 fsync 期间不占用 Tomcat 线程，用于和 MVC 接口对比。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(64)
+public class RequestConcurrencyBenchmark {
+
+    private static final int PRODUCTS = 1000;
+    private static final long FIRST_PRODUCT_ID = 1000;
+
+    @Param({ "false", "true" })
+    public boolean virtualThreads;
+
+    @Param({ "8" })
+    public int tomcatThreads;
+
+    @Param({ "product", "rx/product" })
+    public String api;
+
+    @Param({ "json", "journal", "mmap" })
+    public String storageMode;
+
+    private Path dir;
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("record-bench");
+        BenchmarkData.generate(dir, PRODUCTS, PRODUCTS / 100, FIRST_PRODUCT_ID);
+
+        context = SpringApplication.run(Application.class,
+                "--server.port=0",
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--server.tomcat.threads.max=" + tomcatThreads,
+                "--server.tomcat.threads.min-spare=" + tomcatThreads,
+                "--app.storage.mode=" + storageMode,
+                "--app.storage.data-dir=" + dir,
+                "--app.storage.upload-dir=" + dir.resolve("uploads"),
+                "--logging.level.root=WARN");
+        baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public int in() throws IOException, InterruptedException {
+        long productId = FIRST_PRODUCT_ID + ThreadLocalRandom.current().nextInt(PRODUCTS);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/" + api + "/in"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("productId=" + productId + "&count=1"))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
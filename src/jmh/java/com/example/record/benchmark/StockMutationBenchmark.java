@@ -0,0 +1,60 @@
+package com.example.record.benchmark;
+
+import com.example.record.repository.StockChange;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程并发入库/出库，对应 /api/product/in 和 /api/product/out 的热路径。
+ * hotProducts 控制竞争程度：越小越多线程争抢同一商品的锁。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StockMutationBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int products;
+
+    @Param({ "json", "journal", "mmap" })
+    public String storage;
+
+    @Param({ "16", "1000000" })
+    public int hotProducts;
+
+    private BenchmarkData data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = BenchmarkData.create(products, storage);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        data.close();
+    }
+
+    private long randomProduct() {
+        return data.productId(ThreadLocalRandom.current().nextInt(Math.min(hotProducts, data.products)));
+    }
+
+    @Benchmark
+    @Group("inOut")
+    @GroupThreads(4)
+    public StockChange in() {
+        return data.productRepo.changeStock(randomProduct(), 1);
+    }
+
+    @Benchmark
+    @Group("inOut")
+    @GroupThreads(4)
+    public StockChange out() {
+        return data.productRepo.changeStock(randomProduct(), -1);
+    }
+}
@@ -24,4 +24,15 @@ public class ApiResult<T> {
         r.data = null;
         return r;
     }
+
+    /**
+     * 版本号不一致（If-Match 失败），data 为当前数据，客户端可以据此刷新后重试。
+     */
+    public static <T> ApiResult<T> conflict(String msg, T current) {
+        ApiResult<T> r = new ApiResult<>();
+        r.code = 412;
+        r.msg = msg;
+        r.data = current;
+        return r;
+    }
 }
@@ -0,0 +1,194 @@
+package com.example.record.common;
+
+import com.example.record.model.Product;
+import com.example.record.repository.ProductRepository;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 低库存提醒的 SSE 推送：商品库存降到补货阈值及以下时发送 low-stock 事件，回到阈值以上时发送 restocked 事件，
+ * 事件数据为商品 JSON。
+ * <p>
+ * 仓库在商品锁内回调，这里只把事件放进每个订阅者自己的缓冲区，不会拖慢库存写入。
+ * 缓冲区按商品合并：同一商品在发送前多次越过阈值只保留最新的一次；待发送的商品数超过 subscriber-buffer 时
+ * 清空缓冲区，改为发送一条 resync 事件，由客户端重新调用 /api/product/low-stock。
+ * 发送在每个订阅者自己的虚拟线程上进行，慢客户端只会阻塞自己的发送。每 30 秒发送一次心跳，断开的连接在发送失败时移除。
+ */
+@Component
+public class LowStockNotifier implements ProductRepository.LowStockListener {
+
+    private static final Logger log = LoggerFactory.getLogger(LowStockNotifier.class);
+
+    private static final long PING_INTERVAL_MILLIS = 30_000;
+
+    // 一条待发送的事件；product 为 null 表示 SSE 注释（心跳）
+    private static final class Frame {
+        final Product product;
+        final boolean low;
+
+        Frame(Product product, boolean low) {
+            this.product = product;
+            this.low = low;
+        }
+    }
+
+    private static final Frame PING = new Frame(null, false);
+
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        final String baseUrl;
+        // 商品 id -> 最新事件，按进入缓冲区的顺序发送；心跳的 key 为 0
+        final LinkedHashMap<Long, Frame> buffer = new LinkedHashMap<>();
+        final AtomicBoolean sending = new AtomicBoolean();
+        boolean resync;
+
+        Subscriber(SseEmitter emitter, String baseUrl) {
+            this.emitter = emitter;
+            this.baseUrl = baseUrl;
+        }
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final int bufferSize;
+    private final ScheduledExecutorService pinger;
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+
+    public LowStockNotifier(ProductRepository productRepo,
+            @Value("${app.stream.subscriber-buffer:256}") int bufferSize) {
+        this.bufferSize = bufferSize;
+        pinger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "low-stock-notifier-ping");
+            t.setDaemon(true);
+            return t;
+        });
+        pinger.scheduleWithFixedDelay(this::ping, PING_INTERVAL_MILLIS, PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        productRepo.addLowStockListener(this);
+    }
+
+    /**
+     * 新的订阅，baseUrl 用于把 /uploads/ 开头的图片路径拼成完整URL。
+     */
+    public SseEmitter subscribe(String baseUrl) {
+        // 不设超时，断开的连接由心跳发送失败时清理
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = new Subscriber(emitter, baseUrl);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        log.debug("低库存提醒订阅数: {}", subscribers.size());
+        return emitter;
+    }
+
+    @Override
+    public void crossed(Product product, boolean low) {
+        for (Subscriber subscriber : subscribers) {
+            synchronized (subscriber) {
+                if (subscriber.resync) {
+                    continue;
+                }
+                // 先移除再放入，合并后的事件排到最后，与实际越过阈值的顺序一致
+                subscriber.buffer.remove(product.getId());
+                subscriber.buffer.put(product.getId(), new Frame(product, low));
+                if (subscriber.buffer.size() > bufferSize) {
+                    subscriber.buffer.clear();
+                    subscriber.resync = true;
+                }
+            }
+            schedule(subscriber);
+        }
+    }
+
+    private void ping() {
+        for (Subscriber subscriber : subscribers) {
+            synchronized (subscriber) {
+                if (!subscriber.buffer.isEmpty() || subscriber.resync) {
+                    continue;
+                }
+                subscriber.buffer.put(0L, PING);
+            }
+            schedule(subscriber);
+        }
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    // 在订阅者自己的虚拟线程上把缓冲区发完；发送期间新到的事件继续合并进缓冲区
+    private void send(Subscriber subscriber) {
+        while (true) {
+            List<Frame> frames;
+            boolean resync;
+            synchronized (subscriber) {
+                frames = new ArrayList<>(subscriber.buffer.values());
+                subscriber.buffer.clear();
+                resync = subscriber.resync;
+                subscriber.resync = false;
+                if (frames.isEmpty() && !resync) {
+                    subscriber.sending.set(false);
+                    return;
+                }
+            }
+            try {
+                if (resync) {
+                    subscriber.emitter.send(SseEmitter.event().name("resync").data(""));
+                }
+                for (Frame frame : frames) {
+                    if (frame.product == null) {
+                        subscriber.emitter.send(SseEmitter.event().comment("ping"));
+                    } else {
+                        subscriber.emitter.send(SseEmitter.event()
+                                .name(frame.low ? "low-stock" : "restocked")
+                                .id(String.valueOf(frame.product.getId()))
+                                .data(withImageUrl(frame.product, subscriber.baseUrl)));
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(subscriber);
+                subscriber.emitter.completeWithError(e);
+                subscriber.sending.set(false);
+                return;
+            }
+        }
+    }
+
+    // 每个订阅者一个副本：连接建立前发送的事件会先缓存，不能共用一个对象再改写图片路径
+    private static Product withImageUrl(Product src, String baseUrl) {
+        Product p = new Product();
+        p.setId(src.getId());
+        p.setCategoryId(src.getCategoryId());
+        p.setName(src.getName());
+        p.setImagePath(src.getImagePath() != null && src.getImagePath().startsWith("/uploads/")
+                ? baseUrl + src.getImagePath() : src.getImagePath());
+        p.setStock(src.getStock());
+        p.setReorderLevel(src.getReorderLevel());
+        p.setVersion(src.getVersion());
+        return p;
+    }
+
+    @PreDestroy
+    public void close() {
+        pinger.shutdownNow();
+        senders.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.record.common;
+
+import com.example.record.repository.ChangeLog;
+import com.example.record.repository.DataVersion;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 列表接口响应体的缓存：按 (接口范围, baseUrl) 保存序列化好的 UTF-8 JSON，命中时直接写到输出流。
+ * <p>
+ * 范围有三种：分类列表、全部商品、某个分类的商品列表。通过 ChangeLog 监听数据变动，
+ * 分类变动失效分类列表和该分类的商品列表，商品变动失效全部商品和所属分类的商品列表。
+ * <p>
+ * 构建响应前先取数据版本，构建期间如果该范围被失效过就不写入缓存，避免把旧数据放进去。
+ * <p>
+ * 只缓存成功的响应：分类不存在之类的错误响应每次重新构建，否则任意分类 id 的请求都会留下一个缓存项。
+ * 缓存的范围数不超过 app.response-cache.max-scopes，达到上限后新的范围不再缓存，直到已有范围被失效；
+ * 失效版本按范围哈希记在固定数量的槽里，不随范围数增长，哈希冲突只会让构建结果多被拒绝一次。
+ */
+@Component
+public class ResponseCache implements ChangeLog.Listener {
+
+    public interface Body {
+        ApiResult<?> build() throws IOException;
+    }
+
+    // baseUrl 来自请求的 Host，每个范围最多缓存这么多个，防止伪造 Host 撑大缓存
+    private static final int MAX_BASE_URLS = 8;
+    private static final String CATEGORY_LIST = "category-list";
+    private static final String PRODUCT_ALL = "product-all";
+    private static final String PRODUCT_LIST = "product-list:";
+    private static final int INVALIDATION_SLOTS = 1024;
+
+    private final DataVersion dataVersion;
+    private final ObjectMapper objectMapper;
+    private final int maxScopes;
+    private final Map<String, Map<String, byte[]>> entries = new ConcurrentHashMap<>();
+    // 范围哈希所在槽 -> 最近一次失效时的数据版本
+    private final AtomicLongArray invalidatedAt = new AtomicLongArray(INVALIDATION_SLOTS);
+    private volatile long resetAt;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public ResponseCache(ChangeLog changeLog, DataVersion dataVersion, ObjectMapper objectMapper,
+            MeterRegistry registry, @Value("${app.response-cache.max-scopes:1024}") int maxScopes) {
+        this.dataVersion = dataVersion;
+        this.objectMapper = objectMapper;
+        this.maxScopes = maxScopes;
+        this.hits = Counter.builder("inventory.response.cache").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("inventory.response.cache").tag("result", "miss").register(registry);
+        changeLog.addListener(this);
+    }
+
+    public static String categoryList() {
+        return CATEGORY_LIST;
+    }
+
+    public static String productAll() {
+        return PRODUCT_ALL;
+    }
+
+    public static String productList(long categoryId) {
+        return PRODUCT_LIST + categoryId;
+    }
+
+    /**
+     * 命中时返回缓存的响应体，否则调用 body 构建并序列化，code 为 200 时写入缓存。
+     */
+    public byte[] get(String scope, String baseUrl, Body body) throws IOException {
+        Map<String, byte[]> byBaseUrl = entries.get(scope);
+        byte[] cached = byBaseUrl != null ? byBaseUrl.get(baseUrl) : null;
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        long version = dataVersion.current();
+        ApiResult<?> result = body.build();
+        byte[] built = objectMapper.writeValueAsBytes(result);
+        if (result.getCode() != 200) {
+            return built;
+        }
+        // 检查和写入在 compute 内进行，与 invalidate 互斥
+        entries.compute(scope, (k, target) -> {
+            if (version < resetAt || version < invalidatedAt.get(slotOf(k))) {
+                return target;
+            }
+            if (target == null) {
+                // 范围数只是大致的上限，并发写入不同范围时可能略微超过
+                if (entries.size() >= maxScopes) {
+                    return null;
+                }
+                target = new ConcurrentHashMap<>();
+            }
+            if (target.size() < MAX_BASE_URLS || target.containsKey(baseUrl)) {
+                target.put(baseUrl, built);
+            }
+            return target;
+        });
+        return built;
+    }
+
+    public static void write(HttpServletResponse response, byte[] body) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    @Override
+    public void changed(ChangeLog.Type type, long id, long categoryId, long version) {
+        if (type == ChangeLog.Type.CATEGORY) {
+            invalidate(CATEGORY_LIST, version);
+        } else {
+            invalidate(PRODUCT_ALL, version);
+        }
+        // 分类是否存在也会影响该分类商品列表的响应
+        invalidate(PRODUCT_LIST + categoryId, version);
+    }
+
+    @Override
+    public void reset(long version) {
+        // 先设置 resetAt 再清空，清空之后的写入都会被拒绝
+        resetAt = version;
+        entries.clear();
+    }
+
+    private void invalidate(String scope, long version) {
+        entries.compute(scope, (k, target) -> {
+            // 并发的变动可能乱序通知，只保留最大的版本
+            invalidatedAt.accumulateAndGet(slotOf(k), version, Math::max);
+            return null;
+        });
+    }
+
+    private static int slotOf(String scope) {
+        return Math.floorMod(scope.hashCode(), INVALIDATION_SLOTS);
+    }
+}
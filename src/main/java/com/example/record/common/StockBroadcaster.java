@@ -0,0 +1,291 @@
+package com.example.record.common;
+
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.ChangeLog;
+import com.example.record.repository.DataVersion;
+import com.example.record.repository.ProductRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * /api/stream/stock 的实时库存推送。
+ * <p>
+ * 作为 ChangeLog 的监听器收到每次分类/商品变动，只把 id 记进待发送集合（同一对象合并为一条），不阻塞写入方。
+ * 分发线程每隔 coalesce-ms 取出待发送的 id，读取当前状态并序列化一次（按 baseUrl），再放进每个订阅者的缓冲区。
+ * <p>
+ * 每个订阅者的缓冲区按对象合并：同一商品在发送前多次变动只保留最新状态；
+ * 待发送的对象数超过 subscriber-buffer 时清空缓冲区，改为发送一条 resync 事件，由客户端重新拉取全量。
+ * 发送在每个订阅者自己的虚拟线程上进行，慢客户端只会阻塞自己的发送。
+ * <p>
+ * 事件：product / product-deleted / category / category-deleted / resync，id 为数据版本，
+ * 断线重连后可以用它调用 /api/sync?since= 补齐。
+ */
+@Component
+public class StockBroadcaster implements ChangeLog.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(StockBroadcaster.class);
+
+    private static final long PING_INTERVAL_MILLIS = 30_000;
+
+    // 一条待发送的事件；data 为 null 表示 SSE 注释（心跳）
+    private static final class Frame {
+        final String name;
+        final String data;
+
+        Frame(String name, String data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        final String baseUrl;
+        // 对象 key -> 最新事件，按首次进入缓冲区的顺序发送
+        final LinkedHashMap<String, Frame> buffer = new LinkedHashMap<>();
+        final AtomicBoolean sending = new AtomicBoolean();
+        boolean resync;
+        long version;
+
+        Subscriber(SseEmitter emitter, String baseUrl) {
+            this.emitter = emitter;
+            this.baseUrl = baseUrl;
+        }
+    }
+
+    private final ProductRepository productRepo;
+    private final CategoryRepository categoryRepo;
+    private final DataVersion dataVersion;
+    private final ObjectMapper objectMapper;
+    private final int bufferSize;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // 自上次分发以来变动过的对象 key（"p:id" / "c:id"）
+    private final Set<String> pending = new LinkedHashSet<>();
+    private boolean pendingReset;
+    private long lastPing = System.currentTimeMillis();
+
+    private final ScheduledExecutorService dispatcher;
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final Counter resyncs;
+
+    public StockBroadcaster(ChangeLog changeLog, ProductRepository productRepo, CategoryRepository categoryRepo,
+            DataVersion dataVersion, ObjectMapper objectMapper, MeterRegistry registry,
+            @Value("${app.stream.coalesce-ms:100}") long coalesceMillis,
+            @Value("${app.stream.subscriber-buffer:256}") int bufferSize) {
+        this.productRepo = productRepo;
+        this.categoryRepo = categoryRepo;
+        this.dataVersion = dataVersion;
+        this.objectMapper = objectMapper;
+        this.bufferSize = bufferSize;
+        this.resyncs = Counter.builder("inventory.stream.resync")
+                .description("订阅者缓冲区溢出、改发 resync 的次数").register(registry);
+        Gauge.builder("inventory.stream.subscribers", subscribers, List::size)
+                .description("/api/stream/stock 的订阅数").register(registry);
+
+        dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-stream-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+        dispatcher.scheduleWithFixedDelay(this::dispatchQuietly, coalesceMillis, coalesceMillis,
+                TimeUnit.MILLISECONDS);
+        changeLog.addListener(this);
+    }
+
+    public SseEmitter subscribe(String baseUrl) {
+        // 不设超时，断开的连接由心跳发送失败时清理
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = new Subscriber(emitter, baseUrl);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        log.debug("库存推送订阅数: {}", subscribers.size());
+        return emitter;
+    }
+
+    @Override
+    public void changed(ChangeLog.Type type, long id, long categoryId, long version) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            pending.add((type == ChangeLog.Type.PRODUCT ? "p:" : "c:") + id);
+        }
+    }
+
+    @Override
+    public void reset(long version) {
+        synchronized (pending) {
+            pending.clear();
+            pendingReset = true;
+        }
+    }
+
+    private void dispatchQuietly() {
+        try {
+            dispatch();
+        } catch (Exception e) {
+            log.warn("库存推送分发失败: {}", e.getMessage());
+        }
+    }
+
+    private void dispatch() throws JsonProcessingException {
+        List<String> keys;
+        boolean reset;
+        synchronized (pending) {
+            keys = new ArrayList<>(pending);
+            pending.clear();
+            reset = pendingReset;
+            pendingReset = false;
+        }
+
+        boolean ping = System.currentTimeMillis() - lastPing >= PING_INTERVAL_MILLIS;
+        if (ping) {
+            lastPing = System.currentTimeMillis();
+        }
+        if (subscribers.isEmpty() || (keys.isEmpty() && !reset && !ping)) {
+            return;
+        }
+
+        // 先取版本再读状态，读到的状态不会早于这个版本
+        long version = dataVersion.current();
+        Map<String, Map<String, Frame>> framesByBaseUrl = new HashMap<>();
+        for (Subscriber subscriber : subscribers) {
+            Map<String, Frame> frames = framesByBaseUrl.get(subscriber.baseUrl);
+            if (frames == null) {
+                frames = resolve(keys, subscriber.baseUrl);
+                framesByBaseUrl.put(subscriber.baseUrl, frames);
+            }
+            synchronized (subscriber) {
+                subscriber.version = version;
+                if (reset) {
+                    subscriber.buffer.clear();
+                    subscriber.resync = true;
+                } else if (!subscriber.resync) {
+                    subscriber.buffer.putAll(frames);
+                    if (subscriber.buffer.size() > bufferSize) {
+                        subscriber.buffer.clear();
+                        subscriber.resync = true;
+                        resyncs.increment();
+                    }
+                }
+                if (ping && subscriber.buffer.isEmpty() && !subscriber.resync) {
+                    subscriber.buffer.put("ping", new Frame(null, null));
+                }
+            }
+            schedule(subscriber);
+        }
+    }
+
+    // 按当前状态生成事件，已删除的对象发送 *-deleted
+    private Map<String, Frame> resolve(List<String> keys, String baseUrl) throws JsonProcessingException {
+        Map<String, Frame> frames = new LinkedHashMap<>();
+        for (String key : keys) {
+            long id = Long.parseLong(key.substring(2));
+            if (key.startsWith("p:")) {
+                Product p = productRepo.findById(id);
+                if (p == null) {
+                    frames.put(key, new Frame("product-deleted", "{\"id\":" + id + "}"));
+                } else {
+                    if (p.getImagePath() != null && p.getImagePath().startsWith("/uploads/")) {
+                        p.setImagePath(baseUrl + p.getImagePath());
+                    }
+                    frames.put(key, new Frame("product", objectMapper.writeValueAsString(p)));
+                }
+            } else {
+                Category c = categoryRepo.findById(id);
+                if (c == null) {
+                    frames.put(key, new Frame("category-deleted", "{\"id\":" + id + "}"));
+                } else {
+                    if (c.getImagePath() != null && c.getImagePath().startsWith("/uploads/")) {
+                        c.setImagePath(baseUrl + c.getImagePath());
+                    }
+                    frames.put(key, new Frame("category", objectMapper.writeValueAsString(c)));
+                }
+            }
+        }
+        return frames;
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    // 在订阅者自己的虚拟线程上把缓冲区发完；发送期间新到的事件继续合并进缓冲区
+    private void send(Subscriber subscriber) {
+        while (true) {
+            List<Frame> frames;
+            boolean resync;
+            long version;
+            synchronized (subscriber) {
+                frames = new ArrayList<>(subscriber.buffer.values());
+                subscriber.buffer.clear();
+                resync = subscriber.resync;
+                subscriber.resync = false;
+                version = subscriber.version;
+                if (frames.isEmpty() && !resync) {
+                    subscriber.sending.set(false);
+                    return;
+                }
+            }
+            try {
+                if (resync) {
+                    subscriber.emitter.send(SseEmitter.event().name("resync").id(String.valueOf(version))
+                            .data(String.valueOf(version)));
+                }
+                for (Frame frame : frames) {
+                    if (frame.name == null) {
+                        subscriber.emitter.send(SseEmitter.event().comment("ping"));
+                    } else {
+                        subscriber.emitter.send(SseEmitter.event().name(frame.name).id(String.valueOf(version))
+                                .data(frame.data, MediaType.APPLICATION_JSON));
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(subscriber);
+                subscriber.emitter.completeWithError(e);
+                subscriber.sending.set(false);
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        dispatcher.shutdownNow();
+        senders.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.record.common;
+
+/**
+ * 商品/分类版本号与 ETag、If-Match 请求头之间的转换。ETag 为带引号的版本号，如 "3"。
+ */
+public final class VersionTags {
+
+    private VersionTags() {
+    }
+
+    public static String etag(Long version) {
+        return "\"" + (version != null ? version : 0L) + "\"";
+    }
+
+    /**
+     * 解析 If-Match 请求头，返回期望的版本号。没有该请求头或为 * 时返回 null，表示不检查版本。
+     * 也接受不带引号的版本号和弱 ETag（W/"3"），格式不正确时抛出 IllegalArgumentException。
+     */
+    public static Long ifMatch(String header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (value.isEmpty() || "*".equals(value)) {
+            return null;
+        }
+        if (value.startsWith("W/")) {
+            value = value.substring(2);
+        }
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("If-Match 格式不正确: " + header);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.record.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * /uploads/** 的缩略图：请求带 ?w=宽度 时返回按比例缩小后的图片。
+ * <p>
+ * 宽度向上取到 app.thumbnail.widths 中的档位，避免任意宽度把缓存撑满。
+ * 缩略图第一次请求时用 ImageIO 生成，写入 app.thumbnail.cache-dir，
+ * 按访问顺序做 LRU，总大小超过 app.thumbnail.cache-max-size 时删除最久未访问的文件。
+ * 原图宽度不大于目标宽度、或者 ImageIO 无法解码（如 WEBP）时直接返回原图。
+ * <p>
+ * 解码前先只读图片头取尺寸，像素数超过 app.thumbnail.max-source-pixels 的直接返回原图，
+ * 否则按目标宽度隔行隔列采样解码，不把大图整张解码进内存。
+ */
+@Component
+public class ThumbnailResourceResolver extends AbstractResourceResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailResourceResolver.class);
+
+    private final Path cacheDir;
+    private final int[] widths;
+    private final long maxBytes;
+    private final long maxSourcePixels;
+
+    // 缓存文件名 -> 大小，按访问顺序排列
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public ThumbnailResourceResolver(
+            @Value("${app.thumbnail.cache-dir:${app.storage.data-dir:data}/thumbnails}") String cacheDir,
+            @Value("${app.thumbnail.widths:64,128,256,512}") int[] widths,
+            @Value("${app.thumbnail.cache-max-size:256MB}") DataSize maxSize,
+            @Value("${app.thumbnail.max-source-pixels:40000000}") long maxSourcePixels) throws IOException {
+        this.cacheDir = Paths.get(cacheDir);
+        this.widths = widths.clone();
+        Arrays.sort(this.widths);
+        this.maxBytes = maxSize.toBytes();
+        this.maxSourcePixels = maxSourcePixels;
+        Files.createDirectories(this.cacheDir);
+        loadEntries();
+    }
+
+    // 启动时按修改时间恢复 LRU 顺序，清掉生成到一半的临时文件
+    private void loadEntries() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            List<File> existing = files.map(Path::toFile).sorted(Comparator.comparingLong(File::lastModified)).toList();
+            for (File f : existing) {
+                if (f.getName().endsWith(".tmp")) {
+                    f.delete();
+                    continue;
+                }
+                entries.put(f.getName(), f.length());
+                totalBytes += f.length();
+            }
+        }
+        evict();
+        log.info("缩略图缓存: {} 个文件, {} bytes", entries.size(), totalBytes);
+    }
+
+    @Override
+    protected Resource resolveResourceInternal(@Nullable HttpServletRequest request, String requestPath,
+            List<? extends Resource> locations, ResourceResolverChain chain) {
+        Resource original = chain.resolveResource(request, requestPath, locations);
+        if (original == null || request == null) {
+            return original;
+        }
+        int width = targetWidth(request.getParameter("w"));
+        if (width <= 0) {
+            return original;
+        }
+        try {
+            return thumbnail(original, requestPath, width);
+        } catch (IOException e) {
+            log.warn("生成缩略图失败: {}, {}", requestPath, e.getMessage());
+            return original;
+        }
+    }
+
+    @Override
+    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations,
+            ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourceUrlPath, locations);
+    }
+
+    // 取不小于请求宽度的最小档位，超过最大档位时用最大档位；参数缺失或非法时返回 0
+    int targetWidth(@Nullable String w) {
+        if (w == null || w.isEmpty()) {
+            return 0;
+        }
+        int requested;
+        try {
+            requested = Integer.parseInt(w);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (requested <= 0) {
+            return 0;
+        }
+        for (int candidate : widths) {
+            if (candidate >= requested) {
+                return candidate;
+            }
+        }
+        return widths[widths.length - 1];
+    }
+
+    private Resource thumbnail(Resource original, String requestPath, int width) throws IOException {
+        String format = requestPath.toLowerCase().endsWith(".png") || requestPath.toLowerCase().endsWith(".gif")
+                ? "png" : "jpg";
+        // 原图路径是内容哈希或带时间戳的唯一文件名，缓存文件名直接由它和宽度组成
+        String name = requestPath.replaceAll("[^a-zA-Z0-9._-]", "_") + "_w" + width + "." + format;
+        Path cached = cacheDir.resolve(name);
+
+        synchronized (entries) {
+            if (entries.get(name) != null && Files.exists(cached)) {
+                return new FileSystemResource(cached);
+            }
+        }
+
+        int[] size = new int[2];
+        BufferedImage source = decode(original.getFile(), width, size);
+        if (source == null) {
+            return original;
+        }
+        int height = Math.max(1, (int) Math.round((double) size[1] * width / size[0]));
+        boolean alpha = "png".equals(format);
+        BufferedImage scaled = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        // 先写临时文件再改名，并发请求同一缩略图时不会读到写了一半的文件
+        Path tmp = cacheDir.resolve(name + "." + UUID.randomUUID() + ".tmp");
+        try {
+            if (!ImageIO.write(scaled, format, tmp.toFile())) {
+                return original;
+            }
+            Files.move(tmp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        long bytes = Files.size(cached);
+        synchronized (entries) {
+            Long previous = entries.put(name, bytes);
+            totalBytes += bytes - (previous != null ? previous : 0L);
+            evict();
+        }
+        log.debug("生成缩略图: {}, {}x{}, {} bytes", name, width, height, bytes);
+        return new FileSystemResource(cached);
+    }
+
+    /**
+     * 按目标宽度采样解码，原图宽高写入 size。无法解码、原图不比目标宽、或像素数超过上限时返回 null。
+     */
+    private BufferedImage decode(File file, int width, int[] size) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // 只读图片头，图片声明的尺寸再大也不会在这里分配像素内存
+                size[0] = reader.getWidth(0);
+                size[1] = reader.getHeight(0);
+                if (size[0] <= width) {
+                    return null;
+                }
+                if ((long) size[0] * size[1] > maxSourcePixels) {
+                    log.warn("原图尺寸过大，不生成缩略图: {}, {}x{}", file.getName(), size[0], size[1]);
+                    return null;
+                }
+                // 采样后保留约 2 倍目标宽度，再用双线性插值缩小，兼顾内存和画质
+                int step = Math.max(1, size[0] / (width * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(cacheDir.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("删除缩略图缓存失败: {}, {}", eldest.getKey(), e.getMessage());
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+}
@@ -1,11 +1,24 @@
 package com.example.record.config;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
+
+    private static final Logger log = LoggerFactory.getLogger(WebConfig.class);
+
+    @Value("${app.storage.upload-dir:uploads}")
+    private String uploadDir;
+
+    @Autowired
+    private ThumbnailResourceResolver thumbnailResolver;
     
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
@@ -13,13 +26,18 @@ public class WebConfig implements WebMvcConfigurer {
         String projectRoot = System.getProperty("user.dir");
         
         // 配置/uploads/**映射到文件系统的uploads目录
-        String uploadPath = "file:" + projectRoot + "/uploads/";
+        String uploadPath = "file:" + projectRoot + "/" + uploadDir + "/";
         
-        System.out.println("配置静态资源映射，项目根目录: " + projectRoot);
-        System.out.println("上传文件访问路径: " + uploadPath);
+        log.info("配置静态资源映射，项目根目录: {}", projectRoot);
+        log.info("上传文件访问路径: {}", uploadPath);
         
+        // ?w=128 返回缩略图；文件名是内容哈希或唯一的时间戳名，直接用作强 ETag
+        // 不缓存路径解析结果（resourceChain(false)），否则同一路径不同 w 会命中同一个缓存
         registry.addResourceHandler("/uploads/**")
                 .addResourceLocations(uploadPath)
-                .setCachePeriod(3600); // 缓存1小时
+                .setCachePeriod(3600) // 缓存1小时
+                .setEtagGenerator(Resource::getFilename)
+                .resourceChain(false)
+                .addResolver(thumbnailResolver);
     }
 }
\ No newline at end of file
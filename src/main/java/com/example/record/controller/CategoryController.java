@@ -1,27 +1,37 @@
 package com.example.record.controller;
 
 import com.example.record.common.ApiResult;
+import com.example.record.common.ResponseCache;
+import com.example.record.common.VersionTags;
 import com.example.record.model.Category;
 import com.example.record.model.Product;
 import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.DataVersion;
+import com.example.record.repository.ImageStore;
 import com.example.record.repository.ProductRepository;
+import com.example.record.repository.UpdateResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.HttpHeaders;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
 import java.util.List;
 
 @RestController
 @RequestMapping("/api/category")
 public class CategoryController {
 
+    private static final Logger log = LoggerFactory.getLogger(CategoryController.class);
+
     @Autowired
     private CategoryRepository repo;
 
@@ -31,6 +41,18 @@ public class CategoryController {
     @Autowired
     private ResourceLoader resourceLoader;
 
+    @Autowired
+    private ImageStore imageStore;
+
+    @Autowired
+    private DataVersion dataVersion;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     // 添加默认值，避免在properties中未配置时报错
     @Value("${server.address:}")
     private String serverAddress;
@@ -41,48 +63,23 @@ public class CategoryController {
     @Value("${app.base-url:}")
     private String baseUrlFromConfig;
 
+    // 未带 If-Match 的修改在读取后被并发修改抢先时，重新读取再试的次数
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+
     @PostMapping("/create")
     public ApiResult<Category> create(
             @RequestParam String name,
             @RequestParam(required = false) MultipartFile image,
             HttpServletRequest request) {
+        String imageUrl = "";
         try {
-            System.out.println("开始创建分类: " + name);
+            log.debug("开始创建分类: {}", name);
 
-            String imageUrl = "";
             if (image != null && !image.isEmpty()) {
-                System.out.println("接收到图片文件: " + image.getOriginalFilename());
-
-                // 获取项目根目录
-                String projectRoot = System.getProperty("user.dir");
-                System.out.println("项目根目录: " + projectRoot);
-
-                // 创建上传目录
-                String uploadDir = projectRoot + File.separator + "uploads" + File.separator + "category";
-                File dir = new File(uploadDir);
-                if (!dir.exists()) {
-                    boolean created = dir.mkdirs();
-                    System.out.println("创建上传目录: " + created + ", 路径: " + uploadDir);
-                }
-
-                // 生成安全的文件名
-                String originalFilename = image.getOriginalFilename();
-                String safeFilename;
+                log.debug("接收到图片文件: {}", image.getOriginalFilename());
 
-                if (originalFilename != null && !originalFilename.trim().isEmpty()) {
-                    safeFilename = originalFilename.replaceAll("[^a-zA-Z0-9._-]", "_");
-                } else {
-                    safeFilename = "category_" + System.currentTimeMillis() + ".jpg";
-                }
-
-                String finalFilename = System.currentTimeMillis() + "_" + safeFilename;
-                String filePath = uploadDir + File.separator + finalFilename;
-                System.out.println("文件保存路径: " + filePath);
-
-                // 保存文件
-                Path targetPath = Paths.get(filePath);
-                Files.copy(image.getInputStream(), targetPath);
-                System.out.println("文件保存成功");
+                // 按内容哈希保存，相同图片只存一份；非图片或超过大小限制时直接拒绝
+                ImageStore.StoredImage stored = imageStore.save(image);
 
                 // 获取服务器基础URL
                 String baseUrl;
@@ -90,7 +87,7 @@ public class CategoryController {
                 // 优先级：配置文件 > 从请求中构建
                 if (baseUrlFromConfig != null && !baseUrlFromConfig.isEmpty()) {
                     baseUrl = baseUrlFromConfig;
-                    System.out.println("使用配置文件中的baseUrl: " + baseUrl);
+                    log.debug("使用配置文件中的baseUrl: {}", baseUrl);
                 } else {
                     // 从请求中构建基础URL
                     String scheme = request.getScheme(); // http 或 https
@@ -108,66 +105,150 @@ public class CategoryController {
                     }
 
                     baseUrl = urlBuilder.toString();
-                    System.out.println("从请求构建baseUrl: " + baseUrl);
+                    log.debug("从请求构建baseUrl: {}", baseUrl);
                 }
 
                 // 构建完整的图片访问URL
-                imageUrl = baseUrl + "/uploads/category/" + finalFilename;
-                System.out.println("图片访问URL: " + imageUrl);
-
-                // 验证文件是否可以访问（可选）
-                File savedFile = new File(filePath);
-                if (savedFile.exists()) {
-                    System.out.println("✅ 文件保存验证成功，大小: " + savedFile.length() + " bytes");
-                }
+                imageUrl = baseUrl + stored.getPath();
+                log.debug("图片访问URL: {}", imageUrl);
             } else {
-                System.out.println("没有上传图片");
+                log.debug("没有上传图片");
             }
 
             // 保存分类信息
             Category category = repo.save(name, imageUrl);
-            System.out.println("分类创建成功，ID: " + category.getId());
+            log.debug("分类创建成功，ID: {}", category.getId());
             return ApiResult.ok(category);
 
+        } catch (IllegalArgumentException e) {
+            log.debug("分类图片被拒绝: {}", e.getMessage());
+            return ApiResult.error(e.getMessage());
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("创建分类失败", e);
+            // 分类没有保存成功，归还上传产生的图片引用
+            imageStore.release(imageUrl);
             return ApiResult.error("创建失败: " + e.getMessage());
         }
     }
 
     @GetMapping("/list")
-    public ApiResult<Object> list(HttpServletRequest request) {
-        List<Category> categories = repo.findAll();
-
+    public void list(HttpServletRequest request, HttpServletResponse response, WebRequest webRequest)
+            throws IOException {
         // 确保图片URL是正确的（如果数据库中存储的是相对路径，则构建完整URL）
         String baseUrl = getBaseUrl(request);
 
-        for (Category category : categories) {
-            String imagePath = category.getImagePath();
-            if (imagePath != null && !imagePath.isEmpty()) {
-                // 如果是以/uploads/开头的相对路径，则构建完整URL
-                if (imagePath.startsWith("/uploads/")) {
-                    category.setImagePath(baseUrl + imagePath);
+        // 数据没有变化时直接返回 304
+        if (webRequest.checkNotModified(dataVersion.etag(baseUrl))) {
+            return;
+        }
+
+        // 序列化好的响应按 baseUrl 缓存，分类变动时失效
+        byte[] body = responseCache.get(ResponseCache.categoryList(), baseUrl, () -> {
+            List<Category> categories = repo.findAll();
+
+            for (Category category : categories) {
+                String imagePath = category.getImagePath();
+                if (imagePath != null && !imagePath.isEmpty()) {
+                    // 如果是以/uploads/开头的相对路径，则构建完整URL
+                    if (imagePath.startsWith("/uploads/")) {
+                        category.setImagePath(baseUrl + imagePath);
+                    }
+                    // 注意：如果imagePath已经是完整URL（例如在create时已构建），则不需要处理
                 }
-                // 注意：如果imagePath已经是完整URL（例如在create时已构建），则不需要处理
             }
-        }
 
-        return ApiResult.ok(categories);
+            return ApiResult.ok(categories);
+        });
+        ResponseCache.write(response, body);
+    }
+
+    /**
+     * 修改分类名称或图片，未传的字段保持不变，totalCount 由商品库存推导不能修改。
+     * 带 If-Match 时只在版本号一致时修改，否则返回 412 和当前分类。
+     */
+    @PostMapping("/update")
+    public ApiResult<Category> update(
+            @RequestParam Long id,
+            @RequestParam(required = false) String name,
+            @RequestParam(required = false) MultipartFile image,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        String imageUrl = null;
+        try {
+            log.debug("修改分类，ID: {}, 名称: {}", id, name);
+            Long expectedVersion = VersionTags.ifMatch(ifMatch);
+            String baseUrl = getBaseUrl(request);
+
+            if (image != null && !image.isEmpty()) {
+                // 按内容哈希保存，修改成功后引用转交给分类，失败时归还
+                ImageStore.StoredImage stored = imageStore.save(image);
+                imageUrl = baseUrl + stored.getPath();
+            }
+
+            UpdateResult<Category> result = null;
+            String previousImage = null;
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                Category c = repo.findById(id);
+                if (c == null) {
+                    break;
+                }
+                previousImage = c.getImagePath();
+                if (name != null) {
+                    c.setName(name);
+                }
+                if (imageUrl != null) {
+                    c.setImagePath(imageUrl);
+                }
+                result = repo.update(c, expectedVersion != null ? expectedVersion : c.getVersion());
+                if (expectedVersion != null || result.getStatus() != UpdateResult.Status.CONFLICT) {
+                    break;
+                }
+            }
+
+            if (result == null || result.getStatus() == UpdateResult.Status.NOT_FOUND) {
+                imageStore.release(imageUrl);
+                return ApiResult.error("分类不存在");
+            }
+
+            Category category = result.getValue();
+            String imagePath = category.getImagePath();
+            if (imagePath != null && imagePath.startsWith("/uploads/")) {
+                category.setImagePath(baseUrl + imagePath);
+            }
+            response.setHeader(HttpHeaders.ETAG, VersionTags.etag(category.getVersion()));
+
+            if (result.getStatus() == UpdateResult.Status.CONFLICT) {
+                imageStore.release(imageUrl);
+                log.debug("分类版本不一致，If-Match: {}, 当前版本: {}", ifMatch, category.getVersion());
+                response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return ApiResult.conflict("分类已被修改，请刷新后重试", category);
+            }
+            if (imageUrl != null && imageUrl.equals(previousImage)) {
+                // 上传的是同一张图片，分类原本就持有它的引用
+                imageStore.release(imageUrl);
+            }
+
+            log.debug("分类修改成功，ID: {}, 版本: {}", category.getId(), category.getVersion());
+            return ApiResult.ok(category);
+
+        } catch (IllegalArgumentException e) {
+            imageStore.release(imageUrl);
+            return ApiResult.error(e.getMessage());
+        } catch (Exception e) {
+            log.error("修改分类失败", e);
+            imageStore.release(imageUrl);
+            return ApiResult.error("修改失败: " + e.getMessage());
+        }
     }
 
     @PostMapping("/delete")
     public ApiResult<Object> delete(@RequestParam Long id) {
         try {
-            System.out.println("开始删除分类，ID: " + id);
+            log.debug("开始删除分类，ID: {}", id);
 
-            // 1. 先删除该分类下的所有商品和商品图片
+            // 1. 先取出该分类下的所有商品
             List<Product> products = productRepo.findByCategory(id);
-            for (Product product : products) {
-                // 删除商品图片
-                deleteProductImage(product);
-                // 商品JSON文件会在商品Repository的删除中处理
-            }
 
             // 2. 删除分类
             boolean deleted = repo.delete(id);
@@ -175,17 +256,16 @@ public class CategoryController {
                 return ApiResult.error("分类不存在或删除失败");
             }
 
-            // 3. 删除商品JSON文件
+            // 3. 删除商品（商品JSON文件和图片引用在商品Repository的删除中处理）
             for (Product product : products) {
                 productRepo.delete(product.getId());
             }
 
-            System.out.println("✅ 分类及关联商品删除成功");
+            log.debug("✅ 分类及关联商品删除成功");
             return ApiResult.ok("删除成功");
 
         } catch (Exception e) {
-            System.err.println("删除分类失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除分类失败", e);
             return ApiResult.error("删除失败: " + e.getMessage());
         }
     }
@@ -193,82 +273,23 @@ public class CategoryController {
     @PostMapping("/delete-all")
     public ApiResult<Object> deleteAll() {
         try {
-            System.out.println("开始删除全部分类");
-
-            // 1. 获取所有分类
-            List<Category> categories = repo.findAll();
+            log.debug("开始删除全部分类");
 
-            // 2. 删除所有分类下的商品
-            for (Category category : categories) {
-                List<Product> products = productRepo.findByCategory(category.getId());
-                for (Product product : products) {
-                    deleteProductImage(product);
-                }
-            }
-
-            // 3. 删除所有商品数据
+            // 1. 删除所有商品数据，释放商品图片引用
             productRepo.deleteAll();
 
-            // 4. 删除所有分类
+            // 2. 删除所有分类，释放分类图片引用
             repo.deleteAll();
 
-            System.out.println("✅ 全部分类及关联商品删除成功");
+            log.info("✅ 全部分类及关联商品删除成功");
             return ApiResult.ok("删除成功");
 
         } catch (Exception e) {
-            System.err.println("删除全部分类失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除全部分类失败", e);
             return ApiResult.error("删除失败: " + e.getMessage());
         }
     }
 
-    // 辅助方法：删除商品图片
-    private void deleteProductImage(Product product) {
-        if (product.getImagePath() != null && !product.getImagePath().isEmpty()) {
-            try {
-                String imagePath = product.getImagePath();
-                String filePath = null;
-
-                // 从URL或路径中提取本地文件路径
-                if (imagePath.startsWith("http")) {
-                    // 从URL中提取文件名
-                    String[] parts = imagePath.split("/uploads/");
-                    if (parts.length > 1) {
-                        String relativePath = parts[1];
-                        String projectRoot = System.getProperty("user.dir");
-                        filePath = projectRoot + File.separator + "uploads" + File.separator + relativePath;
-                    }
-                } else if (imagePath.startsWith("/uploads/")) {
-                    // 相对路径
-                    String projectRoot = System.getProperty("user.dir");
-                    filePath = projectRoot + imagePath.replace("/", File.separator);
-                } else {
-                    // 直接路径
-                    filePath = imagePath;
-                }
-
-                if (filePath != null) {
-                    File imageFile = new File(filePath);
-                    if (imageFile.exists()) {
-                        boolean deleted = imageFile.delete();
-                        System.out.println("删除商品图片: " + filePath + ", 结果: " + deleted);
-
-                        // 尝试删除可能存在的空目录
-                        File parentDir = imageFile.getParentFile();
-                        if (parentDir != null && parentDir.isDirectory() && parentDir.listFiles().length == 0) {
-                            boolean dirDeleted = parentDir.delete();
-                            System.out.println("删除空商品图片目录: " + parentDir.getPath() + ", 结果: " + dirDeleted);
-                        }
-                    } else {
-                        System.out.println("商品图片文件不存在: " + filePath);
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("删除商品图片异常: " + e.getMessage());
-            }
-        }
-    }
-
     // 辅助方法：获取基础URL
     private String getBaseUrl(HttpServletRequest request) {
         if (baseUrlFromConfig != null && !baseUrlFromConfig.isEmpty()) {
@@ -1,35 +1,76 @@
 package com.example.record.controller;
 
 import com.example.record.common.ApiResult;
+import com.example.record.common.LowStockNotifier;
+import com.example.record.common.ResponseCache;
+import com.example.record.common.VersionTags;
+import com.example.record.model.BatchStockItem;
+import com.example.record.model.BatchStockResult;
 import com.example.record.model.Category;
 import com.example.record.model.Product;
+import com.example.record.model.ProductPage;
+import com.example.record.model.ProductSearchResult;
 import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.DataVersion;
+import com.example.record.repository.ImageStore;
 import com.example.record.repository.ProductRepository;
+import com.example.record.repository.StockChange;
+import com.example.record.repository.UpdateResult;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 
 @RestController
 @RequestMapping("/api/product")
 public class ProductController {
 
+    private static final Logger log = LoggerFactory.getLogger(ProductController.class);
+
     @Autowired
     private ProductRepository productRepo;
 
     @Autowired
     private CategoryRepository categoryRepo;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ImageStore imageStore;
+
+    @Autowired
+    private DataVersion dataVersion;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private LowStockNotifier lowStockNotifier;
+
     @Value("${app.base-url:}")
     private String baseUrlFromConfig;
 
+    private static final int MAX_PAGE_SIZE = 1000;
+    // 未带 If-Match 的修改在读取后被并发修改（如库存变动）抢先时，重新读取再试的次数
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+
     @PostMapping("/create")
     public ApiResult<Product> create(
             @RequestParam Long categoryId,
@@ -37,191 +78,306 @@ public class ProductController {
             @RequestParam Long stock,
             @RequestParam(required = false) MultipartFile image,
             HttpServletRequest request) {
+        String imageUrl = "";
         try {
-            System.out.println("开始创建商品: " + name);
-            System.out.println("分类ID: " + categoryId + ", 库存: " + stock);
+            log.debug("开始创建商品: {}", name);
+            log.debug("分类ID: {}, 库存: {}", categoryId, stock);
 
-            String imageUrl = "";
-            if (image != null && !image.isEmpty()) {
-                System.out.println("接收到商品图片文件: " + image.getOriginalFilename());
-                System.out.println("文件大小: " + image.getSize() + " bytes");
-                System.out.println("Content-Type: " + image.getContentType());
-
-                // 获取项目根目录
-                String projectRoot = System.getProperty("user.dir");
-                System.out.println("项目根目录: " + projectRoot);
-
-                // 创建上传目录
-                String uploadDir = projectRoot + File.separator + "uploads" + File.separator + "product";
-                File dir = new File(uploadDir);
-                if (!dir.exists()) {
-                    boolean created = dir.mkdirs();
-                    System.out.println("创建商品上传目录: " + created + ", 路径: " + uploadDir);
-                }
-
-                // 生成安全的文件名
-                String originalFilename = image.getOriginalFilename();
-                String safeFilename;
+            // 先验证分类是否存在，避免分类不存在时白白保存图片
+            Category category = categoryRepo.findById(categoryId);
+            if (category == null) {
+                log.debug("❌ 分类不存在，ID: {}", categoryId);
+                return ApiResult.error("分类不存在");
+            }
 
-                if (originalFilename != null && !originalFilename.trim().isEmpty()) {
-                    safeFilename = originalFilename.replaceAll("[^a-zA-Z0-9._-]", "_");
-                } else {
-                    safeFilename = "product_" + System.currentTimeMillis() + ".jpg";
-                }
+            log.debug("找到分类: {}", category.getName());
 
-                String finalFilename = System.currentTimeMillis() + "_" + safeFilename;
-                String filePath = uploadDir + File.separator + finalFilename;
-                System.out.println("商品图片保存路径: " + filePath);
+            if (image != null && !image.isEmpty()) {
+                log.debug("接收到商品图片文件: {}", image.getOriginalFilename());
+                log.debug("文件大小: {} bytes", image.getSize());
+                log.debug("Content-Type: {}", image.getContentType());
 
-                // 保存文件
-                try {
-                    Path targetPath = Paths.get(filePath);
-                    Files.copy(image.getInputStream(), targetPath);
-                    System.out.println("商品图片保存成功");
-                } catch (Exception e) {
-                    System.out.println("使用Files.copy保存失败: " + e.getMessage());
-
-                    // 备选方案：使用transferTo
-                    File targetFile = new File(filePath);
-                    image.transferTo(targetFile);
-                    System.out.println("使用transferTo保存成功");
-                }
+                // 按内容哈希保存，相同图片只存一份；非图片或超过大小限制时直接拒绝
+                ImageStore.StoredImage stored = imageStore.save(image);
 
                 // 获取服务器基础URL
                 String baseUrl = getBaseUrl(request);
-                System.out.println("商品图片基础URL: " + baseUrl);
+                log.debug("商品图片基础URL: {}", baseUrl);
 
                 // 构建完整的图片访问URL
-                imageUrl = baseUrl + "/uploads/product/" + finalFilename;
-                System.out.println("商品图片访问URL: " + imageUrl);
-
-                // 验证文件是否保存成功
-                File savedFile = new File(filePath);
-                if (savedFile.exists()) {
-                    System.out.println("✅ 商品图片保存验证成功，大小: " + savedFile.length() + " bytes");
-                } else {
-                    System.out.println("❌ 商品图片保存失败!");
-                    return ApiResult.error("商品图片保存失败");
-                }
+                imageUrl = baseUrl + stored.getPath();
+                log.debug("商品图片访问URL: {}", imageUrl);
             } else {
-                System.out.println("没有上传商品图片");
+                log.debug("没有上传商品图片");
             }
 
-            // 验证分类是否存在
-            Category category = categoryRepo.findById(categoryId);
-            if (category == null) {
-                System.out.println("❌ 分类不存在，ID: " + categoryId);
-                return ApiResult.error("分类不存在");
-            }
-
-            System.out.println("找到分类: " + category.getName());
-
-            // 保存商品信息
+            // 保存商品信息（同时累加分类库存总数），图片引用随之转交给商品
             Product product = productRepo.save(categoryId, name, imageUrl, stock);
-            System.out.println("商品创建成功，ID: " + product.getId());
-
-            // 更新分类库存总数
-            Long currentTotal = category.getTotalCount() != null ? category.getTotalCount() : 0L;
-            category.setTotalCount(currentTotal + stock);
-            categoryRepo.update(category);
-            System.out.println("分类库存总数更新为: " + category.getTotalCount());
+            log.debug("商品创建成功，ID: {}", product.getId());
 
             return ApiResult.ok(product);
 
+        } catch (IllegalArgumentException e) {
+            log.debug("商品图片被拒绝: {}", e.getMessage());
+            return ApiResult.error(e.getMessage());
         } catch (Exception e) {
-            System.err.println("创建商品失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("创建商品失败", e);
+            // 商品没有保存成功，归还上传产生的图片引用
+            imageStore.release(imageUrl);
             return ApiResult.error("创建失败: " + e.getMessage());
         }
     }
 
     @GetMapping("/all")
-    public ApiResult<Object> all(HttpServletRequest request) {
+    public void all(
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) Long afterCategoryId,
+            @RequestParam(required = false) Long afterId,
+            HttpServletRequest request,
+            HttpServletResponse response,
+            WebRequest webRequest) throws IOException {
+        byte[] body;
+        try {
+            // 数据没有变化时直接返回 304，不读取和序列化商品
+            String baseUrl = getBaseUrl(request);
+            if (webRequest.checkNotModified(dataVersion.etag(baseUrl))) {
+                return;
+            }
+
+            if (limit != null) {
+                body = objectMapper.writeValueAsBytes(ApiResult.ok(page(limit, afterCategoryId, afterId, baseUrl)));
+            } else {
+                // 不分页的完整列表按 baseUrl 缓存序列化结果，任何商品变动时失效
+                body = responseCache.get(ResponseCache.productAll(), baseUrl, () -> {
+                    log.debug("获取所有商品");
+                    var products = productRepo.findAll();
+
+                    // 确保商品图片URL是正确的
+                    for (Product product : products) {
+                        updateImageUrl(product, baseUrl);
+                    }
+
+                    log.debug("返回商品数量: {}", products.size());
+                    return ApiResult.ok(products);
+                });
+            }
+        } catch (Exception e) {
+            log.warn("获取所有商品失败: {}", e.getMessage());
+            body = objectMapper.writeValueAsBytes(ApiResult.error("获取失败: " + e.getMessage()));
+        }
+        ResponseCache.write(response, body);
+    }
+
+    // 分页：limit 限制在 1~MAX_PAGE_SIZE，游标为上一页最后一个商品的 (categoryId, id)
+    private ProductPage page(int limit, Long afterCategoryId, Long afterId, String baseUrl) {
+        int size = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        ProductPage page = productRepo.findPage(afterCategoryId, afterId, size);
+
+        for (Product product : page.getItems()) {
+            updateImageUrl(product, baseUrl);
+        }
+        return page;
+    }
+
+    /**
+     * 流式返回全部商品，响应结构与 /all 相同，但逐个写出，不在内存中构建完整列表。
+     */
+    @GetMapping("/all/stream")
+    public void allStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String baseUrl = getBaseUrl(request);
+        if (new ServletWebRequest(request, response).checkNotModified(dataVersion.etag(baseUrl))) {
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+
+        try (JsonGenerator gen = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            gen.writeStartObject();
+            gen.writeNumberField("code", 200);
+            gen.writeStringField("msg", "ok");
+            gen.writeArrayFieldStart("data");
+            productRepo.forEach(product -> {
+                updateImageUrl(product, baseUrl);
+                try {
+                    gen.writeObject(product);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            gen.writeEndArray();
+            gen.writeEndObject();
+        } catch (UncheckedIOException e) {
+            // 响应已经开始输出，只能中断连接
+            log.warn("流式输出商品失败: {}", e.getMessage());
+        }
+    }
+
+    @GetMapping("/list/{cid}")
+    public void list(@PathVariable Long cid, HttpServletRequest request, HttpServletResponse response,
+            WebRequest webRequest) throws IOException {
+        byte[] body;
         try {
-            System.out.println("获取所有商品");
-            var products = productRepo.findAll();
+            log.debug("获取分类商品，分类ID: {}", cid);
 
-            // 确保商品图片URL是正确的
             String baseUrl = getBaseUrl(request);
-            for (Product product : products) {
+            if (webRequest.checkNotModified(dataVersion.etag(baseUrl))) {
+                return;
+            }
+
+            // 按分类和 baseUrl 缓存序列化结果，该分类或其下商品变动时失效
+            body = responseCache.get(ResponseCache.productList(cid), baseUrl, () -> {
+                // 验证分类是否存在
+                Category category = categoryRepo.findById(cid);
+                if (category == null) {
+                    log.debug("分类不存在: {}", cid);
+                    return ApiResult.error("分类不存在");
+                }
+
+                var products = productRepo.findByCategory(cid);
+
+                // 确保商品图片URL是正确的
+                for (Product product : products) {
+                    updateImageUrl(product, baseUrl);
+                }
+
+                log.debug("返回商品数量: {}", products.size());
+                return ApiResult.ok(products);
+            });
+        } catch (Exception e) {
+            log.warn("获取分类商品失败: {}", e.getMessage());
+            body = objectMapper.writeValueAsBytes(ApiResult.error("获取失败: " + e.getMessage()));
+        }
+        ResponseCache.write(response, body);
+    }
+
+    /**
+     * 按名称搜索，结果按相关度排序。offset 从 0 开始，limit 限制在 1~MAX_PAGE_SIZE。
+     */
+    @GetMapping("/search")
+    public ApiResult<ProductSearchResult> search(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "0") int offset,
+            @RequestParam(defaultValue = "20") int limit,
+            HttpServletRequest request) {
+        try {
+            if (q.isBlank()) {
+                return ApiResult.error("搜索关键字不能为空");
+            }
+            if (offset < 0) {
+                return ApiResult.error("offset 不能小于0");
+            }
+
+            ProductSearchResult result = productRepo.search(q, offset, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+            String baseUrl = getBaseUrl(request);
+            for (Product product : result.getItems()) {
                 updateImageUrl(product, baseUrl);
             }
+            log.debug("搜索商品: {}, 命中: {}", q, result.getTotal());
+            return ApiResult.ok(result);
 
-            System.out.println("返回商品数量: " + products.size());
-            return ApiResult.ok(products);
         } catch (Exception e) {
-            System.err.println("获取所有商品失败: " + e.getMessage());
-            return ApiResult.error("获取失败: " + e.getMessage());
+            log.error("搜索商品失败", e);
+            return ApiResult.error("搜索失败: " + e.getMessage());
         }
     }
 
-    @GetMapping("/list/{cid}")
-    public ApiResult<Object> list(@PathVariable Long cid, HttpServletRequest request) {
+    /**
+     * 设置补货阈值，reorderLevel 不传时取消该商品的低库存提醒。
+     */
+    @PostMapping("/reorder-level")
+    public ApiResult<Product> reorderLevel(
+            @RequestParam Long productId,
+            @RequestParam(required = false) Long reorderLevel,
+            HttpServletRequest request) {
         try {
-            System.out.println("获取分类商品，分类ID: " + cid);
+            if (reorderLevel != null && reorderLevel < 0) {
+                return ApiResult.error("补货阈值不能小于0");
+            }
 
-            // 验证分类是否存在
-            Category category = categoryRepo.findById(cid);
-            if (category == null) {
-                System.out.println("分类不存在: " + cid);
-                return ApiResult.error("分类不存在");
+            Product product = productRepo.setReorderLevel(productId, reorderLevel);
+            if (product == null) {
+                log.debug("商品不存在: {}", productId);
+                return ApiResult.error("商品不存在");
             }
+            log.debug("商品补货阈值更新: {}, {}", productId, reorderLevel);
 
-            var products = productRepo.findByCategory(cid);
+            updateImageUrl(product, getBaseUrl(request));
+            return ApiResult.ok(product);
 
-            // 确保商品图片URL是正确的
+        } catch (Exception e) {
+            log.error("设置补货阈值失败", e);
+            return ApiResult.error("设置失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 库存不高于补货阈值的商品，缺口最大的在前。margin 为正数时同时返回距离阈值不超过 margin 的商品。
+     */
+    @GetMapping("/low-stock")
+    public ApiResult<List<Product>> lowStock(
+            @RequestParam(defaultValue = "0") long margin,
+            @RequestParam(defaultValue = "100") int limit,
+            HttpServletRequest request) {
+        try {
+            List<Product> products = productRepo.findLowStock(margin, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
             String baseUrl = getBaseUrl(request);
             for (Product product : products) {
                 updateImageUrl(product, baseUrl);
             }
-
-            System.out.println("返回商品数量: " + products.size());
             return ApiResult.ok(products);
+
         } catch (Exception e) {
-            System.err.println("获取分类商品失败: " + e.getMessage());
-            return ApiResult.error("获取失败: " + e.getMessage());
+            log.error("查询低库存商品失败", e);
+            return ApiResult.error("查询失败: " + e.getMessage());
         }
     }
 
+    /**
+     * 低库存提醒（SSE）：库存降到补货阈值及以下时推送 low-stock 事件，回到阈值以上时推送 restocked 事件。
+     * 收到 resync 事件时说明积压过多、中间的事件已丢弃，应重新调用 /low-stock。
+     */
+    @GetMapping(value = "/low-stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter lowStockStream(HttpServletRequest request) {
+        return lowStockNotifier.subscribe(getBaseUrl(request));
+    }
+
     @PostMapping("/in")
     public ApiResult<Product> in(
             @RequestParam Long productId,
             @RequestParam Long count,
-            HttpServletRequest request) {
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request,
+            HttpServletResponse response) {
         try {
-            System.out.println("商品入库，商品ID: " + productId + ", 数量: " + count);
+            log.debug("商品入库，商品ID: {}, 数量: {}", productId, count);
 
             if (count <= 0) {
                 return ApiResult.error("入库数量必须大于0");
             }
 
-            Product product = productRepo.findById(productId);
-            if (product == null) {
-                System.out.println("商品不存在: " + productId);
+            StockChange change = productRepo.changeStock(productId, count, VersionTags.ifMatch(ifMatch));
+            if (change.getStatus() == StockChange.Status.NOT_FOUND) {
+                log.debug("商品不存在: {}", productId);
                 return ApiResult.error("商品不存在");
             }
-
-            Long oldStock = product.getStock();
-            product.setStock(oldStock + count);
-            productRepo.update(product);
-            System.out.println("商品库存更新: " + oldStock + " -> " + product.getStock());
-
-            Category category = categoryRepo.findById(product.getCategoryId());
-            if (category != null) {
-                Long oldTotal = category.getTotalCount() != null ? category.getTotalCount() : 0L;
-                category.setTotalCount(oldTotal + count);
-                categoryRepo.update(category);
-                System.out.println("分类总库存更新: " + oldTotal + " -> " + category.getTotalCount());
+            if (change.getStatus() == StockChange.Status.CONFLICT) {
+                log.debug("商品版本不一致，If-Match: {}, 当前版本: {}", ifMatch, change.getProduct().getVersion());
+                return conflict(change.getProduct(), request, response);
             }
 
+            Product product = change.getProduct();
+            log.debug("商品库存更新: {} -> {}", change.getOldStock(), product.getStock());
+
             // 确保图片URL正确
             updateImageUrl(product, getBaseUrl(request));
+            response.setHeader(HttpHeaders.ETAG, VersionTags.etag(product.getVersion()));
 
             return ApiResult.ok(product);
 
+        } catch (IllegalArgumentException e) {
+            return ApiResult.error(e.getMessage());
         } catch (Exception e) {
-            System.err.println("商品入库失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("商品入库失败", e);
             return ApiResult.error("入库失败: " + e.getMessage());
         }
     }
@@ -230,46 +386,43 @@ public class ProductController {
     public ApiResult<Product> out(
             @RequestParam Long productId,
             @RequestParam Long count,
-            HttpServletRequest request) {
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request,
+            HttpServletResponse response) {
         try {
-            System.out.println("商品出库，商品ID: " + productId + ", 数量: " + count);
+            log.debug("商品出库，商品ID: {}, 数量: {}", productId, count);
 
             if (count <= 0) {
                 return ApiResult.error("出库数量必须大于0");
             }
 
-            Product product = productRepo.findById(productId);
-            if (product == null) {
-                System.out.println("商品不存在: " + productId);
+            StockChange change = productRepo.changeStock(productId, -count, VersionTags.ifMatch(ifMatch));
+            if (change.getStatus() == StockChange.Status.NOT_FOUND) {
+                log.debug("商品不存在: {}", productId);
                 return ApiResult.error("商品不存在");
             }
-
-            if (product.getStock() < count) {
-                System.out.println("库存不足，当前库存: " + product.getStock() + ", 出库数量: " + count);
+            if (change.getStatus() == StockChange.Status.INSUFFICIENT_STOCK) {
+                log.debug("库存不足，当前库存: {}, 出库数量: {}", change.getOldStock(), count);
                 return ApiResult.error("库存不足");
             }
-
-            Long oldStock = product.getStock();
-            product.setStock(oldStock - count);
-            productRepo.update(product);
-            System.out.println("商品库存更新: " + oldStock + " -> " + product.getStock());
-
-            Category category = categoryRepo.findById(product.getCategoryId());
-            if (category != null) {
-                Long oldTotal = category.getTotalCount() != null ? category.getTotalCount() : 0L;
-                category.setTotalCount(oldTotal - count);
-                categoryRepo.update(category);
-                System.out.println("分类总库存更新: " + oldTotal + " -> " + category.getTotalCount());
+            if (change.getStatus() == StockChange.Status.CONFLICT) {
+                log.debug("商品版本不一致，If-Match: {}, 当前版本: {}", ifMatch, change.getProduct().getVersion());
+                return conflict(change.getProduct(), request, response);
             }
 
+            Product product = change.getProduct();
+            log.debug("商品库存更新: {} -> {}", change.getOldStock(), product.getStock());
+
             // 确保图片URL正确
             updateImageUrl(product, getBaseUrl(request));
+            response.setHeader(HttpHeaders.ETAG, VersionTags.etag(product.getVersion()));
 
             return ApiResult.ok(product);
 
+        } catch (IllegalArgumentException e) {
+            return ApiResult.error(e.getMessage());
         } catch (Exception e) {
-            System.err.println("商品出库失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("商品出库失败", e);
             return ApiResult.error("出库失败: " + e.getMessage());
         }
     }
@@ -278,71 +431,181 @@ public class ProductController {
     public ApiResult<Product> setStock(
             @RequestParam Long productId,
             @RequestParam Long newStock,
-            HttpServletRequest request) {
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request,
+            HttpServletResponse response) {
         try {
-            System.out.println("设置商品库存，商品ID: " + productId + ", 新库存: " + newStock);
+            log.debug("设置商品库存，商品ID: {}, 新库存: {}", productId, newStock);
 
             if (newStock < 0) {
-                System.out.println("❌ 库存数量不能为负数: " + newStock);
+                log.debug("❌ 库存数量不能为负数: {}", newStock);
                 return ApiResult.error("库存数量不能为负数");
             }
 
-            Product product = productRepo.findById(productId);
-            if (product == null) {
-                System.out.println("❌ 商品不存在，ID: " + productId);
+            StockChange change = productRepo.setStock(productId, newStock, VersionTags.ifMatch(ifMatch));
+            if (change.getStatus() == StockChange.Status.NOT_FOUND) {
+                log.debug("❌ 商品不存在，ID: {}", productId);
                 return ApiResult.error("商品不存在");
             }
-
-            System.out.println("找到商品: " + product.getName() +
-                    ", 当前库存: " + product.getStock() +
-                    ", 分类ID: " + product.getCategoryId());
-
-            // 计算库存变化量
-            Long oldStock = product.getStock();
-            Long stockChange = newStock - oldStock;
-            System.out.println("库存变化量: " + stockChange + " (新库存 " + newStock + " - 旧库存 " + oldStock + ")");
-
-            // 更新商品库存
-            product.setStock(newStock);
-            // 添加这一行，将商品更新保存到文件
-            productRepo.update(product);
-            System.out.println("✅ 商品库存更新成功: " + oldStock + " -> " + newStock);
-
-            // 更新分类总库存（如果有变化）
-            if (stockChange != 0) {
-                Category category = categoryRepo.findById(product.getCategoryId());
-                if (category != null) {
-                    Long oldTotal = category.getTotalCount() != null ? category.getTotalCount() : 0L;
-                    Long newTotal = oldTotal + stockChange;
-
-                    // 确保分类总库存不会为负数
-                    if (newTotal < 0) {
-                        System.out.println("⚠️ 分类总库存不能为负数，重置为0");
-                        newTotal = 0L;
-                    }
-
-                    category.setTotalCount(newTotal);
-                    categoryRepo.update(category);
-                    System.out.println("✅ 分类总库存更新: " + oldTotal + " -> " + newTotal);
-                } else {
-                    System.out.println("⚠️ 未找到分类，ID: " + product.getCategoryId());
-                }
-            } else {
-                System.out.println("库存无变化，无需更新分类总库存");
+            if (change.getStatus() == StockChange.Status.CONFLICT) {
+                log.debug("商品版本不一致，If-Match: {}, 当前版本: {}", ifMatch, change.getProduct().getVersion());
+                return conflict(change.getProduct(), request, response);
             }
 
+            Product product = change.getProduct();
+            log.debug("✅ 商品库存更新成功: {} -> {}, 分类ID: {}", change.getOldStock(), newStock, product.getCategoryId());
+
             // 确保图片URL正确
             updateImageUrl(product, getBaseUrl(request));
+            response.setHeader(HttpHeaders.ETAG, VersionTags.etag(product.getVersion()));
 
             return ApiResult.ok(product);
 
+        } catch (IllegalArgumentException e) {
+            return ApiResult.error(e.getMessage());
         } catch (Exception e) {
-            System.err.println("❌ 设置商品库存失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("❌ 设置商品库存失败", e);
             return ApiResult.error("设置库存失败: " + e.getMessage());
         }
     }
 
+    @PostMapping("/batch")
+    public ApiResult<List<BatchStockResult>> batch(@RequestBody List<BatchStockItem> items) {
+        try {
+            log.debug("批量库存操作，行数: {}", items.size());
+
+            List<StockChange> changes = productRepo.applyBatch(items);
+
+            List<BatchStockResult> results = new ArrayList<>(items.size());
+            int succeeded = 0;
+            for (int i = 0; i < items.size(); i++) {
+                BatchStockItem item = items.get(i);
+                StockChange change = changes.get(i);
+
+                BatchStockResult r = new BatchStockResult();
+                r.setProductId(item.getProductId());
+                r.setOp(item.getOp());
+                r.setCount(item.getCount());
+                r.setSuccess(change.isOk());
+                r.setStock(change.getProduct() != null ? change.getProduct().getStock() : null);
+                r.setVersion(change.getProduct() != null ? change.getProduct().getVersion() : null);
+                switch (change.getStatus()) {
+                    case OK:
+                        r.setMsg("ok");
+                        succeeded++;
+                        break;
+                    case NOT_FOUND:
+                        r.setMsg("商品不存在");
+                        break;
+                    case INSUFFICIENT_STOCK:
+                        r.setMsg("库存不足");
+                        break;
+                    case CONFLICT:
+                        r.setMsg("商品已被修改");
+                        break;
+                    case WRITE_FAILED:
+                        r.setMsg("保存失败");
+                        break;
+                    default:
+                        r.setMsg("参数不合法");
+                        break;
+                }
+                results.add(r);
+            }
+
+            log.debug("批量库存操作完成，成功: {}, 失败: {}", succeeded, (items.size() - succeeded));
+            return ApiResult.ok(results);
+
+        } catch (Exception e) {
+            log.error("批量库存操作失败", e);
+            return ApiResult.error("批量操作失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 修改商品名称、分类或图片，未传的字段保持不变，库存只能通过入库/出库/设置库存修改。
+     * 带 If-Match 时只在版本号一致时修改，否则返回 412 和当前商品；不带时以读到的版本为准，被并发修改抢先时重新读取再试。
+     */
+    @PostMapping("/update")
+    public ApiResult<Product> update(
+            @RequestParam Long productId,
+            @RequestParam(required = false) String name,
+            @RequestParam(required = false) Long categoryId,
+            @RequestParam(required = false) MultipartFile image,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        String imageUrl = null;
+        try {
+            log.debug("修改商品，商品ID: {}, 名称: {}, 分类ID: {}", productId, name, categoryId);
+            Long expectedVersion = VersionTags.ifMatch(ifMatch);
+
+            if (categoryId != null && categoryRepo.findById(categoryId) == null) {
+                log.debug("❌ 分类不存在，ID: {}", categoryId);
+                return ApiResult.error("分类不存在");
+            }
+
+            if (image != null && !image.isEmpty()) {
+                // 按内容哈希保存，修改成功后引用转交给商品，失败时归还
+                ImageStore.StoredImage stored = imageStore.save(image);
+                imageUrl = getBaseUrl(request) + stored.getPath();
+            }
+
+            UpdateResult<Product> result = null;
+            String previousImage = null;
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                Product p = productRepo.findById(productId);
+                if (p == null) {
+                    break;
+                }
+                previousImage = p.getImagePath();
+                if (name != null) {
+                    p.setName(name);
+                }
+                if (categoryId != null) {
+                    p.setCategoryId(categoryId);
+                }
+                if (imageUrl != null) {
+                    p.setImagePath(imageUrl);
+                }
+                result = productRepo.update(p, expectedVersion != null ? expectedVersion : p.getVersion());
+                if (expectedVersion != null || result.getStatus() != UpdateResult.Status.CONFLICT) {
+                    break;
+                }
+            }
+
+            if (result == null || result.getStatus() == UpdateResult.Status.NOT_FOUND) {
+                imageStore.release(imageUrl);
+                log.debug("商品不存在: {}", productId);
+                return ApiResult.error("商品不存在");
+            }
+            if (result.getStatus() == UpdateResult.Status.CONFLICT) {
+                imageStore.release(imageUrl);
+                log.debug("商品版本不一致，If-Match: {}, 当前版本: {}", ifMatch, result.getValue().getVersion());
+                return conflict(result.getValue(), request, response);
+            }
+
+            if (imageUrl != null && imageUrl.equals(previousImage)) {
+                // 上传的是同一张图片，商品原本就持有它的引用
+                imageStore.release(imageUrl);
+            }
+
+            Product product = result.getValue();
+            log.debug("商品修改成功，ID: {}, 版本: {}", product.getId(), product.getVersion());
+            updateImageUrl(product, getBaseUrl(request));
+            response.setHeader(HttpHeaders.ETAG, VersionTags.etag(product.getVersion()));
+            return ApiResult.ok(product);
+
+        } catch (IllegalArgumentException e) {
+            imageStore.release(imageUrl);
+            return ApiResult.error(e.getMessage());
+        } catch (Exception e) {
+            log.error("修改商品失败", e);
+            imageStore.release(imageUrl);
+            return ApiResult.error("修改失败: " + e.getMessage());
+        }
+    }
+
     @PostMapping("/delete")
     public ApiResult<Object> delete(@RequestParam Long productId) {
         try {
@@ -362,88 +625,26 @@ public class ProductController {
     @PostMapping("/delete-all")
     public ApiResult<Object> deleteAll(HttpServletRequest request) {
         try {
-            System.out.println("开始删除所有商品");
-
-            // 1. 删除所有商品图片
-            List<Product> products = productRepo.findAll();
-            for (Product product : products) {
-                deleteProductImage(product);
-            }
+            log.debug("开始删除所有商品");
 
-            // 2. 删除所有商品数据
+            // 删除所有商品数据并释放图片引用（分类总库存随之归零）
             productRepo.deleteAll();
 
-            // 3. 重置所有分类的总库存为0
-            List<Category> categories = categoryRepo.findAll();
-            for (Category category : categories) {
-                category.setTotalCount(0L);
-                categoryRepo.update(category);
-            }
-
-            System.out.println("✅ 所有商品删除成功，分类总库存已重置");
+            log.info("✅ 所有商品删除成功，分类总库存已重置");
             return ApiResult.ok("删除成功");
 
         } catch (Exception e) {
-            System.err.println("删除所有商品失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除所有商品失败", e);
             return ApiResult.error("删除失败: " + e.getMessage());
         }
     }
 
-    // 辅助方法：删除商品图片（与CategoryController中的类似，但更通用）
-    private void deleteProductImage(Product product) {
-        if (product.getImagePath() != null && !product.getImagePath().isEmpty()) {
-            try {
-                String imagePath = product.getImagePath();
-                String filePath = extractLocalFilePath(imagePath);
-
-                if (filePath != null) {
-                    File imageFile = new File(filePath);
-                    if (imageFile.exists()) {
-                        boolean deleted = imageFile.delete();
-                        System.out.println("删除商品图片文件: " + filePath + ", 结果: " + deleted);
-
-                        // 尝试删除可能存在的空目录
-                        File parentDir = imageFile.getParentFile();
-                        if (parentDir != null && parentDir.isDirectory() && parentDir.listFiles().length == 0) {
-                            boolean dirDeleted = parentDir.delete();
-                            System.out.println("删除空目录: " + parentDir.getPath() + ", 结果: " + dirDeleted);
-                        }
-                    } else {
-                        System.out.println("商品图片文件不存在: " + filePath);
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("删除商品图片异常: " + e.getMessage());
-            }
-        }
-    }
-
-    // 辅助方法：从URL或路径中提取本地文件路径
-    private String extractLocalFilePath(String imagePath) {
-        if (imagePath == null || imagePath.isEmpty()) {
-            return null;
-        }
-
-        String projectRoot = System.getProperty("user.dir");
-        String filePath = null;
-
-        if (imagePath.startsWith("http")) {
-            // 从URL中提取文件名
-            String[] parts = imagePath.split("/uploads/");
-            if (parts.length > 1) {
-                String relativePath = parts[1];
-                filePath = projectRoot + File.separator + "uploads" + File.separator + relativePath;
-            }
-        } else if (imagePath.startsWith("/uploads/")) {
-            // 相对路径
-            filePath = projectRoot + imagePath.replace("/", File.separator);
-        } else {
-            // 直接路径
-            filePath = imagePath;
-        }
-
-        return filePath;
+    // 辅助方法：版本冲突时返回 412 和当前商品，ETag 为当前版本，客户端可据此重试
+    private ApiResult<Product> conflict(Product current, HttpServletRequest request, HttpServletResponse response) {
+        updateImageUrl(current, getBaseUrl(request));
+        response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+        response.setHeader(HttpHeaders.ETAG, VersionTags.etag(current.getVersion()));
+        return ApiResult.conflict("商品已被修改，请刷新后重试", current);
     }
 
     // 辅助方法：获取基础URL
@@ -0,0 +1,166 @@
+package com.example.record.controller;
+
+import com.example.record.common.ApiResult;
+import com.example.record.common.VersionTags;
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.ProductRepository;
+import com.example.record.repository.StockChange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * 商品列表和入库/出库的响应式版本，路径和响应结构与 /api/product 相同，前缀为 /api/rx/product。
+ * <p>
+ * 返回 Mono/Flux，由 Spring MVC 按异步请求处理：入库/出库在 journal 模式下只把记录放进日志缓冲区，
+ * 请求线程随即归还给 Tomcat，日志 fsync 后由刷盘线程完成响应，等待落盘的连接不占用线程。
+ * /all/stream 按 NDJSON 逐个输出，客户端读得慢时按需从内存索引拉取，不会堆积在服务端。
+ */
+@RestController
+@RequestMapping("/api/rx/product")
+public class ReactiveProductController {
+
+    private static final Logger log = LoggerFactory.getLogger(ReactiveProductController.class);
+
+    @Autowired
+    private CategoryRepository categoryRepo;
+
+    @Autowired
+    private ProductRepository productRepo;
+
+    @Value("${app.base-url:}")
+    private String baseUrlFromConfig;
+
+    @GetMapping("/all")
+    public Mono<ApiResult<List<Product>>> all(HttpServletRequest request) {
+        String baseUrl = getBaseUrl(request);
+        return Mono.fromSupplier(() -> {
+            List<Product> products = productRepo.findAll();
+            for (Product product : products) {
+                updateImageUrl(product, baseUrl);
+            }
+            return ApiResult.ok(products);
+        });
+    }
+
+    @GetMapping(value = "/all/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Product> allStream(HttpServletRequest request) {
+        String baseUrl = getBaseUrl(request);
+        return Flux.fromStream(productRepo::stream).map(product -> {
+            updateImageUrl(product, baseUrl);
+            return product;
+        });
+    }
+
+    @GetMapping("/list/{cid}")
+    public Mono<ApiResult<List<Product>>> list(@PathVariable Long cid, HttpServletRequest request) {
+        String baseUrl = getBaseUrl(request);
+        return Mono.fromSupplier(() -> {
+            Category category = categoryRepo.findById(cid);
+            if (category == null) {
+                return ApiResult.error("分类不存在");
+            }
+            List<Product> products = productRepo.findByCategory(cid);
+            for (Product product : products) {
+                updateImageUrl(product, baseUrl);
+            }
+            return ApiResult.ok(products);
+        });
+    }
+
+    @PostMapping("/in")
+    public Mono<ResponseEntity<ApiResult<Product>>> in(
+            @RequestParam Long productId,
+            @RequestParam Long count,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request) {
+        if (count <= 0) {
+            return Mono.just(ResponseEntity.ok(ApiResult.error("入库数量必须大于0")));
+        }
+        return changeStock(productId, count, ifMatch, "入库", getBaseUrl(request));
+    }
+
+    @PostMapping("/out")
+    public Mono<ResponseEntity<ApiResult<Product>>> out(
+            @RequestParam Long productId,
+            @RequestParam Long count,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            HttpServletRequest request) {
+        if (count <= 0) {
+            return Mono.just(ResponseEntity.ok(ApiResult.error("出库数量必须大于0")));
+        }
+        return changeStock(productId, -count, ifMatch, "出库", getBaseUrl(request));
+    }
+
+    // 成功和版本冲突（412）时带上商品当前版本的 ETag
+    private Mono<ResponseEntity<ApiResult<Product>>> changeStock(Long productId, long delta, String ifMatch,
+            String action, String baseUrl) {
+        return Mono.fromFuture(() -> productRepo.changeStockAsync(productId, delta, VersionTags.ifMatch(ifMatch)))
+                .map(change -> {
+                    if (change.getStatus() == StockChange.Status.NOT_FOUND) {
+                        return ResponseEntity.ok(ApiResult.<Product>error("商品不存在"));
+                    }
+                    if (change.getStatus() == StockChange.Status.INSUFFICIENT_STOCK) {
+                        return ResponseEntity.ok(ApiResult.<Product>error("库存不足"));
+                    }
+                    Product product = change.getProduct();
+                    updateImageUrl(product, baseUrl);
+                    if (change.getStatus() == StockChange.Status.CONFLICT) {
+                        return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                                .eTag(VersionTags.etag(product.getVersion()))
+                                .body(ApiResult.conflict("商品已被修改，请刷新后重试", product));
+                    }
+                    return ResponseEntity.ok()
+                            .eTag(VersionTags.etag(product.getVersion()))
+                            .body(ApiResult.ok(product));
+                })
+                .onErrorResume(e -> {
+                    if (e instanceof IllegalArgumentException) {
+                        return Mono.just(ResponseEntity.ok(ApiResult.error(e.getMessage())));
+                    }
+                    log.error("商品{}失败", action, e);
+                    return Mono.just(ResponseEntity.ok(ApiResult.error(action + "失败: " + e.getMessage())));
+                });
+    }
+
+    // 辅助方法：更新商品图片URL
+    private void updateImageUrl(Product product, String baseUrl) {
+        String imagePath = product.getImagePath();
+        if (imagePath != null && imagePath.startsWith("/uploads/")) {
+            product.setImagePath(baseUrl + imagePath);
+        }
+    }
+
+    // 辅助方法：获取基础URL
+    private String getBaseUrl(HttpServletRequest request) {
+        if (baseUrlFromConfig != null && !baseUrlFromConfig.isEmpty()) {
+            return baseUrlFromConfig;
+        }
+
+        String scheme = request.getScheme();
+        String serverName = request.getServerName();
+        int serverPort = request.getServerPort();
+
+        StringBuilder urlBuilder = new StringBuilder();
+        urlBuilder.append(scheme).append("://").append(serverName);
+
+        if (("http".equals(scheme) && serverPort != 80) ||
+                ("https".equals(scheme) && serverPort != 443)) {
+            urlBuilder.append(":").append(serverPort);
+        }
+
+        return urlBuilder.toString();
+    }
+}
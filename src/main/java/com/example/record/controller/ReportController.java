@@ -0,0 +1,91 @@
+package com.example.record.controller;
+
+import com.example.record.common.ApiResult;
+import com.example.record.model.MovementRollup;
+import com.example.record.repository.MovementHistory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * 库存变动报表，数据来自 MovementHistory 的按小时/按天汇总。
+ */
+@RestController
+@RequestMapping("/api/report")
+public class ReportController {
+
+    private static final Logger log = LoggerFactory.getLogger(ReportController.class);
+
+    @Autowired
+    private MovementHistory movementHistory;
+
+    /**
+     * 查询入库/出库汇总。
+     * scope：category（默认）或 product；granularity：day（默认）或 hour；id 为空时返回全部分类/商品。
+     * from、to 为 yyyy-MM-dd 或 yyyy-MM-ddTHH:mm，按服务器时区解释；只写日期的 to 包含当天。
+     * 默认查询最近 7 天（按天）或最近 24 小时（按小时）。
+     */
+    @GetMapping("/movements")
+    public ApiResult<List<MovementRollup>> movements(
+            @RequestParam(defaultValue = "category") String scope,
+            @RequestParam(defaultValue = "day") String granularity,
+            @RequestParam(required = false) Long id,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to) {
+        try {
+            MovementHistory.Scope s;
+            if ("category".equalsIgnoreCase(scope)) {
+                s = MovementHistory.Scope.CATEGORY;
+            } else if ("product".equalsIgnoreCase(scope)) {
+                s = MovementHistory.Scope.PRODUCT;
+            } else {
+                return ApiResult.error("scope 只能是 category 或 product");
+            }
+
+            MovementHistory.Granularity g;
+            if ("day".equalsIgnoreCase(granularity)) {
+                g = MovementHistory.Granularity.DAY;
+            } else if ("hour".equalsIgnoreCase(granularity)) {
+                g = MovementHistory.Granularity.HOUR;
+            } else {
+                return ApiResult.error("granularity 只能是 day 或 hour");
+            }
+
+            Instant end = to != null ? parseTime(to, true) : Instant.now();
+            Instant start = from != null ? parseTime(from, false)
+                    : end.minus(g == MovementHistory.Granularity.DAY ? Duration.ofDays(7) : Duration.ofHours(24));
+            if (!start.isBefore(end)) {
+                return ApiResult.error("from 必须早于 to");
+            }
+
+            List<MovementRollup> rows = movementHistory.query(g, s, id, start, end);
+            log.debug("库存变动报表，范围: {}, 粒度: {}, 行数: {}", scope, granularity, rows.size());
+            return ApiResult.ok(rows);
+
+        } catch (DateTimeParseException e) {
+            return ApiResult.error("时间格式错误，应为 yyyy-MM-dd 或 yyyy-MM-ddTHH:mm");
+        } catch (Exception e) {
+            log.error("查询库存变动报表失败", e);
+            return ApiResult.error("查询失败: " + e.getMessage());
+        }
+    }
+
+    // 只有日期时取当天零点；作为结束时间时取次日零点，使结束日期包含在内
+    private static Instant parseTime(String value, boolean end) {
+        ZoneId zone = ZoneId.systemDefault();
+        if (value.length() == 10) {
+            LocalDate date = LocalDate.parse(value);
+            return (end ? date.plusDays(1) : date).atStartOfDay(zone).toInstant();
+        }
+        return LocalDateTime.parse(value).atZone(zone).toInstant();
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.record.controller;
+
+import com.example.record.common.StockBroadcaster;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * 实时库存推送（SSE）：入库、出库、设置库存、删除商品以及分类汇总的变动。
+ * 事件的 id 为数据版本，断线后可用 /api/sync?since= 补齐；收到 resync 事件时应重新拉取全量。
+ */
+@RestController
+@RequestMapping("/api/stream")
+public class StreamController {
+
+    @Autowired
+    private StockBroadcaster stockBroadcaster;
+
+    @Value("${app.base-url:}")
+    private String baseUrlFromConfig;
+
+    @GetMapping(value = "/stock", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stock(HttpServletRequest request) {
+        return stockBroadcaster.subscribe(getBaseUrl(request));
+    }
+
+    // 辅助方法：获取基础URL
+    private String getBaseUrl(HttpServletRequest request) {
+        if (baseUrlFromConfig != null && !baseUrlFromConfig.isEmpty()) {
+            return baseUrlFromConfig;
+        }
+
+        String scheme = request.getScheme();
+        String serverName = request.getServerName();
+        int serverPort = request.getServerPort();
+
+        StringBuilder urlBuilder = new StringBuilder();
+        urlBuilder.append(scheme).append("://").append(serverName);
+
+        if (("http".equals(scheme) && serverPort != 80) ||
+                ("https".equals(scheme) && serverPort != 443)) {
+            urlBuilder.append(":").append(serverPort);
+        }
+
+        return urlBuilder.toString();
+    }
+}
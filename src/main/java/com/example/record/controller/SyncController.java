@@ -0,0 +1,147 @@
+package com.example.record.controller;
+
+import com.example.record.common.ApiResult;
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import com.example.record.model.SyncResult;
+import com.example.record.repository.CategoryRepository;
+import com.example.record.repository.ChangeLog;
+import com.example.record.repository.DataVersion;
+import com.example.record.repository.ProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.*;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量同步：客户端带上次拿到的 version 请求，只返回之后新增、修改、删除的分类和商品。
+ * version 缺失、太旧（变动日志已覆盖）或来自重启前时返回全量数据，full=true。
+ */
+@RestController
+@RequestMapping("/api/sync")
+public class SyncController {
+
+    private static final Logger log = LoggerFactory.getLogger(SyncController.class);
+
+    @Autowired
+    private CategoryRepository categoryRepo;
+
+    @Autowired
+    private ProductRepository productRepo;
+
+    @Autowired
+    private ChangeLog changeLog;
+
+    @Autowired
+    private DataVersion dataVersion;
+
+    @Value("${app.base-url:}")
+    private String baseUrlFromConfig;
+
+    @GetMapping
+    public ApiResult<SyncResult> sync(@RequestParam(required = false) Long since, HttpServletRequest request) {
+        try {
+            String baseUrl = getBaseUrl(request);
+            ChangeLog.Changes changes = since != null ? changeLog.since(since) : null;
+            SyncResult result = changes != null ? delta(changes, baseUrl) : full(baseUrl);
+            log.debug("同步，since: {}, 全量: {}, 分类: {}, 商品: {}", since, result.isFull(),
+                    result.getCategories().size(), result.getProducts().size());
+            return ApiResult.ok(result);
+        } catch (Exception e) {
+            log.error("同步失败", e);
+            return ApiResult.error("同步失败: " + e.getMessage());
+        }
+    }
+
+    // 变动日志只有 id，按当前状态区分修改和删除
+    private SyncResult delta(ChangeLog.Changes changes, String baseUrl) {
+        List<Category> categories = new ArrayList<>();
+        List<Long> deletedCategoryIds = new ArrayList<>();
+        for (Long id : changes.getCategoryIds()) {
+            Category c = categoryRepo.findById(id);
+            if (c != null) {
+                c.setImagePath(imageUrl(c.getImagePath(), baseUrl));
+                categories.add(c);
+            } else {
+                deletedCategoryIds.add(id);
+            }
+        }
+
+        List<Product> products = new ArrayList<>();
+        List<Long> deletedProductIds = new ArrayList<>();
+        for (Long id : changes.getProductIds()) {
+            Product p = productRepo.findById(id);
+            if (p != null) {
+                p.setImagePath(imageUrl(p.getImagePath(), baseUrl));
+                products.add(p);
+            } else {
+                deletedProductIds.add(id);
+            }
+        }
+
+        SyncResult result = new SyncResult();
+        result.setVersion(changes.getVersion());
+        result.setFull(false);
+        result.setCategories(categories);
+        result.setProducts(products);
+        result.setDeletedCategoryIds(deletedCategoryIds);
+        result.setDeletedProductIds(deletedProductIds);
+        return result;
+    }
+
+    private SyncResult full(String baseUrl) {
+        // 先取版本再读数据，读取期间的变动会在下次同步中再返回一次
+        long version = dataVersion.current();
+        List<Category> categories = categoryRepo.findAll();
+        for (Category c : categories) {
+            c.setImagePath(imageUrl(c.getImagePath(), baseUrl));
+        }
+        List<Product> products = productRepo.findAll();
+        for (Product p : products) {
+            p.setImagePath(imageUrl(p.getImagePath(), baseUrl));
+        }
+
+        SyncResult result = new SyncResult();
+        result.setVersion(version);
+        result.setFull(true);
+        result.setCategories(categories);
+        result.setProducts(products);
+        result.setDeletedCategoryIds(new ArrayList<>());
+        result.setDeletedProductIds(new ArrayList<>());
+        return result;
+    }
+
+    // 辅助方法：以/uploads/开头的相对路径拼成完整URL
+    private String imageUrl(String imagePath, String baseUrl) {
+        if (imagePath != null && imagePath.startsWith("/uploads/")) {
+            return baseUrl + imagePath;
+        }
+        return imagePath;
+    }
+
+    // 辅助方法：获取基础URL
+    private String getBaseUrl(HttpServletRequest request) {
+        if (baseUrlFromConfig != null && !baseUrlFromConfig.isEmpty()) {
+            return baseUrlFromConfig;
+        }
+
+        String scheme = request.getScheme();
+        String serverName = request.getServerName();
+        int serverPort = request.getServerPort();
+
+        StringBuilder urlBuilder = new StringBuilder();
+        urlBuilder.append(scheme).append("://").append(serverName);
+
+        if (("http".equals(scheme) && serverPort != 80) ||
+                ("https".equals(scheme) && serverPort != 443)) {
+            urlBuilder.append(":").append(serverPort);
+        }
+
+        return urlBuilder.toString();
+    }
+}
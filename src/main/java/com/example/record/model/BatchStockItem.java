@@ -0,0 +1,45 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+@Data
+public class BatchStockItem {
+    private Long productId;
+    // in / out / set
+    private String op;
+    private Long count;
+    // 可选：期望的商品版本号，与当前版本不一致时本行失败
+    private Long version;
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+@Data
+public class BatchStockResult {
+    private Long productId;
+    private String op;
+    private Long count;
+    private boolean success;
+    private String msg;
+    // 本行执行后的库存，失败时为当前库存（商品不存在时为 null）
+    private Long stock;
+    // 本行执行后的商品版本号，失败时为当前版本
+    private Long version;
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    public void setMsg(String msg) {
+        this.msg = msg;
+    }
+
+    public Long getStock() {
+        return stock;
+    }
+
+    public void setStock(Long stock) {
+        this.stock = stock;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
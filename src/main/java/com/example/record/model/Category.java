@@ -8,6 +8,8 @@ public class Category {
     private String name;
     private String imagePath;
     private Long totalCount;
+    // 版本号：名称、图片修改时加 1；totalCount 由商品库存推导，变化时不改变版本
+    private Long version;
 
     public Long getId() {
         return id;
@@ -40,4 +42,12 @@ public class Category {
     public void setTotalCount(Long totalCount) {
         this.totalCount = totalCount;
     }
-}
\ No newline at end of file
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+@Data
+public class MovementRollup {
+    // 商品 id 或分类 id，取决于查询的范围
+    private Long id;
+    // 桶的起始时间（毫秒时间戳），按服务器时区的整点或零点
+    private long start;
+    private long inUnits;
+    private long outUnits;
+    // 变动次数
+    private long movements;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getInUnits() {
+        return inUnits;
+    }
+
+    public void setInUnits(long inUnits) {
+        this.inUnits = inUnits;
+    }
+
+    public long getOutUnits() {
+        return outUnits;
+    }
+
+    public void setOutUnits(long outUnits) {
+        this.outUnits = outUnits;
+    }
+
+    public long getMovements() {
+        return movements;
+    }
+
+    public void setMovements(long movements) {
+        this.movements = movements;
+    }
+}
@@ -9,6 +9,10 @@ public class Product {
     private String name;
     private String imagePath;
     private Long stock;
+    // 补货阈值：库存不高于该值时视为低库存，为 null 表示不提醒
+    private Long reorderLevel;
+    // 版本号：每次修改（包括库存变动）加 1，用于 If-Match 等条件更新；旧数据没有该字段时为 0
+    private Long version;
 
     public Long getId() {
         return id;
@@ -49,4 +53,20 @@ public class Product {
     public void setStock(Long stock) {
         this.stock = stock;
     }
-}
\ No newline at end of file
+
+    public Long getReorderLevel() {
+        return reorderLevel;
+    }
+
+    public void setReorderLevel(Long reorderLevel) {
+        this.reorderLevel = reorderLevel;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
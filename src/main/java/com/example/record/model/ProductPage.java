@@ -0,0 +1,46 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ProductPage {
+    private List<Product> items;
+    // 下一页游标，传给 afterCategoryId / afterId；没有更多数据时为 null
+    private Long nextCategoryId;
+    private Long nextId;
+    private boolean hasMore;
+
+    public List<Product> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Product> items) {
+        this.items = items;
+    }
+
+    public Long getNextCategoryId() {
+        return nextCategoryId;
+    }
+
+    public void setNextCategoryId(Long nextCategoryId) {
+        this.nextCategoryId = nextCategoryId;
+    }
+
+    public Long getNextId() {
+        return nextId;
+    }
+
+    public void setNextId(Long nextId) {
+        this.nextId = nextId;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ProductSearchResult {
+    // 当前页的商品，按相关度排序
+    private List<Product> items;
+    // 符合条件的商品总数
+    private int total;
+    private boolean hasMore;
+
+    public List<Product> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Product> items) {
+        this.items = items;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.record.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SyncResult {
+    // 本次同步到的版本，下次请求作为 since 传回
+    private long version;
+    // true 表示 since 太旧或缺失，返回的是全量数据，客户端应丢弃本地数据
+    private boolean full;
+    // 新增或修改过的分类、商品
+    private List<Category> categories;
+    private List<Product> products;
+    // 已删除的分类、商品 id；全量同步时为空
+    private List<Long> deletedCategoryIds;
+    private List<Long> deletedProductIds;
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public List<Category> getCategories() {
+        return categories;
+    }
+
+    public void setCategories(List<Category> categories) {
+        this.categories = categories;
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    public void setProducts(List<Product> products) {
+        this.products = products;
+    }
+
+    public List<Long> getDeletedCategoryIds() {
+        return deletedCategoryIds;
+    }
+
+    public void setDeletedCategoryIds(List<Long> deletedCategoryIds) {
+        this.deletedCategoryIds = deletedCategoryIds;
+    }
+
+    public List<Long> getDeletedProductIds() {
+        return deletedProductIds;
+    }
+
+    public void setDeletedProductIds(List<Long> deletedProductIds) {
+        this.deletedProductIds = deletedProductIds;
+    }
+}
@@ -1,39 +1,85 @@
 package com.example.record.repository;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 import com.example.record.model.Category;
-import com.example.record.model.Product;
-import com.example.record.repository.ProductRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Repository
 public class CategoryRepository {
 
-    private static final String DIR = "data/categories";
+    private static final Logger log = LoggerFactory.getLogger(CategoryRepository.class);
+
+    private final String dir;
     private final ObjectMapper mapper = new ObjectMapper();
+    private final RepositoryMetrics metrics;
+    private final ImageStore imageStore;
+    private final ChangeLog changeLog;
+    private final FileWriteLog writeLog;
     private final AtomicLong idGen = new AtomicLong(1);
 
-    public CategoryRepository() {
-        new File(DIR).mkdirs();
-        initId();
+    // 分类内存缓存，按 id 有序
+    private final ConcurrentSkipListMap<Long, Category> byId = new ConcurrentSkipListMap<>();
+    // 分类总库存由商品库存变动增量累加，JSON 文件中的 totalCount 只是延迟刷盘的副本
+    private final Map<Long, LongAdder> totals = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+    // 分类修改很少，条件更新、删除和总库存刷盘的检查和写入用一把锁串行执行
+    // 写入要等待写入日志 fsync，用 ReentrantLock 而不是 synchronized，虚拟线程等待时不占住载体线程
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    public CategoryRepository(
+            @Value("${app.storage.category-flush-interval-seconds:5}") long flushIntervalSeconds,
+            @Value("${app.storage.load-threads:0}") int loadThreads,
+            @Value("${app.storage.data-dir:data}") String dataDir,
+            ImageStore imageStore,
+            ChangeLog changeLog,
+            FileWriteLog writeLog,
+            RepositoryMetrics metrics) {
+        this.metrics = metrics;
+        this.imageStore = imageStore;
+        this.changeLog = changeLog;
+        this.writeLog = writeLog;
+        this.dir = dataDir + "/categories";
+        new File(dir).mkdirs();
+        load(loadThreads);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "category-total-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalSeconds, flushIntervalSeconds,
+                TimeUnit.SECONDS);
     }
 
-    private void initId() {
-        File[] files = new File(DIR).listFiles();
-        long max = 0;
-        if (files != null) {
-            for (File f : files) {
-                try {
-                    max = Math.max(max, Long.parseLong(f.getName().replace(".json", "")));
-                } catch (Exception ignored) {
-                }
+    private void load(int loadThreads) {
+        JsonBulkLoader.Loaded<Category> loaded = JsonBulkLoader.load("分类",
+                List.of(new File(dir)), Category.class, mapper, metrics, loadThreads);
+        for (Category c : loaded.items) {
+            if (c.getVersion() == null) {
+                c.setVersion(0L);
             }
+            byId.put(c.getId(), c);
+            totals.put(c.getId(), new LongAdder());
+            imageStore.retain(c.getImagePath());
         }
-        idGen.set(max + 1);
+        idGen.set(loaded.maxId + 1);
     }
 
     public Category save(String name, String imagePath) {
@@ -42,40 +88,181 @@ public class CategoryRepository {
         c.setName(name);
         c.setImagePath(imagePath);
         c.setTotalCount(0L);
+        c.setVersion(1L);
         write(c);
+        totals.put(c.getId(), new LongAdder());
+        byId.put(c.getId(), copyOf(c));
+        changeLog.recordCategory(c.getId());
         return c;
     }
 
+    /**
+     * 无条件更新，见 {@link #update(Category, Long)}。
+     */
     public void update(Category c) {
-        write(c);
+        update(c, null);
     }
 
-    public Category findById(Long id) {
-        File f = new File(DIR, id + ".json");
+    /**
+     * 更新分类的名称、图片等信息，版本号在当前版本上加 1。totalCount 由商品库存推导，这里传入的值会被忽略。
+     * expectedVersion 不为 null 且与当前版本不一致时不写入，返回 CONFLICT 和当前分类。
+     * imagePath 变化时释放旧图片的引用。
+     */
+    public UpdateResult<Category> update(Category c, Long expectedVersion) {
+        updateLock.lock();
         try {
-            return f.exists() ? mapper.readValue(f, Category.class) : null;
-        } catch (Exception e) {
+            Category old = byId.get(c.getId());
+            if (old == null) {
+                return UpdateResult.notFound();
+            }
+            if (expectedVersion != null && !expectedVersion.equals(old.getVersion())) {
+                return UpdateResult.conflict(snapshot(old));
+            }
+            Category stored = copyOf(c);
+            stored.setTotalCount(totalOf(c.getId()));
+            stored.setVersion(old.getVersion() + 1);
+            write(stored);
+            byId.put(stored.getId(), stored);
+            changeLog.recordCategory(stored.getId());
+            if (!Objects.equals(old.getImagePath(), stored.getImagePath())) {
+                imageStore.release(old.getImagePath());
+            }
+            return UpdateResult.ok(snapshot(stored));
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * 增量调整分类总库存，只更新内存中的累加器，由后台线程延迟刷盘。分类不存在时返回 null。
+     */
+    public Category addTotalCount(Long id, long delta) {
+        LongAdder total = totals.get(id);
+        if (total == null) {
             return null;
         }
+        total.add(delta);
+        dirty.add(id);
+        // 列表接口返回 totalCount，总库存变化也算数据变化
+        changeLog.recordCategory(id);
+        return findById(id);
     }
 
-    public List<Category> findAll() {
-        List<Category> list = new ArrayList<>();
-        File[] files = new File(DIR).listFiles();
-        if (files == null)
-            return list;
-        for (File f : files) {
-            try {
-                list.add(mapper.readValue(f, Category.class));
-            } catch (Exception ignored) {
+    /**
+     * 用商品库存重新计算全部分类总库存，启动时由 ProductRepository 调用。
+     */
+    public void rebuildTotals(Map<Long, Long> stockByCategory) {
+        for (Map.Entry<Long, LongAdder> e : totals.entrySet()) {
+            long actual = stockByCategory.getOrDefault(e.getKey(), 0L);
+            LongAdder total = e.getValue();
+            total.reset();
+            total.add(actual);
+
+            Category stored = byId.get(e.getKey());
+            if (stored != null && !Long.valueOf(actual).equals(stored.getTotalCount())) {
+                log.warn("分类总库存校正，ID: {}, {} -> {}", e.getKey(), stored.getTotalCount(), actual);
+                dirty.add(e.getKey());
             }
         }
+        flush();
+    }
+
+    /**
+     * 所有商品被删除后，分类总库存归零。
+     */
+    public void resetTotals() {
+        for (Map.Entry<Long, LongAdder> e : totals.entrySet()) {
+            e.getValue().reset();
+            dirty.add(e.getKey());
+        }
+        changeLog.reset();
+        flush();
+    }
+
+    /**
+     * 把有变动的分类总库存写回 JSON 文件。
+     */
+    public void flush() {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        // 与 update / delete 用同一把锁：不会把刚删除的分类写回，也不会用旧对象覆盖刚改名的分类。
+        // 写入在提交时已经序列化，写入日志按提交顺序应用，之后的修改和删除一定在这些写入之后落盘
+        updateLock.lock();
+        try {
+            for (Long id : new ArrayList<>(dirty)) {
+                dirty.remove(id);
+                Category stored = byId.get(id);
+                if (stored != null) {
+                    stored.setTotalCount(totalOf(id));
+                    writes.add(writeAsync(stored));
+                }
+            }
+        } finally {
+            updateLock.unlock();
+        }
+        // 一轮刷盘的所有分类共用一次日志 fsync，在锁外等待
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("分类总库存刷盘失败: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private long totalOf(Long id) {
+        LongAdder total = totals.get(id);
+        return total != null ? total.sum() : 0L;
+    }
+
+    public Category findById(Long id) {
+        Category c = byId.get(id);
+        return c != null ? snapshot(c) : null;
+    }
+
+    public List<Category> findAll() {
+        List<Category> list = new ArrayList<>(byId.size());
+        for (Category c : byId.values()) {
+            list.add(snapshot(c));
+        }
         return list;
     }
 
+    // 返回给调用方的副本，totalCount 取累加器的当前值
+    private Category snapshot(Category c) {
+        Category copy = copyOf(c);
+        copy.setTotalCount(totalOf(c.getId()));
+        return copy;
+    }
+
+    private Category copyOf(Category src) {
+        Category c = new Category();
+        c.setId(src.getId());
+        c.setName(src.getName());
+        c.setImagePath(src.getImagePath());
+        c.setTotalCount(src.getTotalCount());
+        c.setVersion(src.getVersion());
+        return c;
+    }
+
     private void write(Category c) {
         try {
-            mapper.writeValue(new File(DIR, c.getId() + ".json"), c);
+            JsonFiles.write(new File(dir, c.getId() + ".json"), c, mapper, writeLog, metrics);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private CompletableFuture<Void> writeAsync(Category c) {
+        try {
+            return JsonFiles.writeAsync(new File(dir, c.getId() + ".json"), c, mapper, writeLog, metrics);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -83,108 +270,79 @@ public class CategoryRepository {
 
     public boolean delete(Long id) {
         try {
-            // 先读取分类信息，获取图片路径
-            Category category = findById(id);
-            if (category == null) {
-                return false; // 分类不存在
-            }
-            
-            // 删除对应的JSON文件
-            File jsonFile = new File(DIR, id + ".json");
-            if (jsonFile.exists()) {
-                boolean jsonDeleted = jsonFile.delete();
-                System.out.println("删除分类JSON文件: " + jsonFile.getPath() + ", 结果: " + jsonDeleted);
+            Category category;
+            // 与条件更新互斥，避免删除后又被写回
+            updateLock.lock();
+            try {
+                // 先读取分类信息，获取图片路径
+                category = findById(id);
+                if (category == null) {
+                    return false; // 分类不存在
+                }
+
+                byId.remove(id);
+                totals.remove(id);
+                dirty.remove(id);
+                changeLog.recordCategory(id);
+
+                // 删除对应的JSON文件
+                File jsonFile = new File(dir, id + ".json");
+                if (jsonFile.exists()) {
+                    writeLog.delete(jsonFile.toPath());
+                    log.debug("删除分类JSON文件: {}", jsonFile.getPath());
+                }
+            } finally {
+                updateLock.unlock();
             }
             
-            // 尝试删除对应的图片文件
-            deleteCategoryImage(category);
+            // 释放图片引用，没有其他分类/商品使用时删除文件
+            imageStore.release(category.getImagePath());
             
             return true;
         } catch (Exception e) {
-            System.err.println("删除分类失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除分类失败", e);
             return false;
         }
     }
     
-    private void deleteCategoryImage(Category category) {
-        if (category.getImagePath() != null && !category.getImagePath().isEmpty()) {
+    public void deleteAll() {
+        try {
+            List<Category> categories;
+            List<CompletableFuture<Void>> deletes = new ArrayList<>();
+            // 与 flush / update / delete 用同一把锁：删除提交之后 flush 看不到这些分类，不会把 JSON 文件写回来
+            updateLock.lock();
             try {
-                // 从完整的URL中提取相对路径
-                String imagePath = category.getImagePath();
-                
-                // 如果是URL，尝试提取本地文件路径
-                if (imagePath.startsWith("http")) {
-                    // 从URL中提取文件名部分
-                    // 例如: http://localhost:8080/uploads/category/1234567890_image.jpg
-                    // 提取为: category/1234567890_image.jpg
-                    String[] parts = imagePath.split("/uploads/");
-                    if (parts.length > 1) {
-                        String relativePath = parts[1];
-                        String projectRoot = System.getProperty("user.dir");
-                        String fullPath = projectRoot + File.separator + "uploads" + File.separator + relativePath;
-                        deleteImageFile(fullPath);
+                // 获取所有分类
+                categories = findAll();
+
+                // 删除每个分类的JSON文件，一起提交到写入日志
+                for (Category category : categories) {
+                    File jsonFile = new File(dir, category.getId() + ".json");
+                    if (jsonFile.exists()) {
+                        deletes.add(writeLog.deleteAsync(jsonFile.toPath()));
                     }
-                } else if (imagePath.startsWith("/uploads/")) {
-                    // 相对路径的情况
-                    String projectRoot = System.getProperty("user.dir");
-                    String fullPath = projectRoot + imagePath.replace("/", File.separator);
-                    deleteImageFile(fullPath);
-                } else {
-                    // 直接是文件路径的情况
-                    deleteImageFile(imagePath);
-                }
-            } catch (Exception e) {
-                System.err.println("删除分类图片失败: " + e.getMessage());
-            }
-        }
-    }
-    
-    private void deleteImageFile(String filePath) {
-        try {
-            File imageFile = new File(filePath);
-            if (imageFile.exists()) {
-                boolean deleted = imageFile.delete();
-                System.out.println("删除图片文件: " + filePath + ", 结果: " + deleted);
-                
-                // 尝试删除可能存在的空目录
-                File parentDir = imageFile.getParentFile();
-                if (parentDir != null && parentDir.isDirectory() && parentDir.listFiles().length == 0) {
-                    boolean dirDeleted = parentDir.delete();
-                    System.out.println("删除空目录: " + parentDir.getPath() + ", 结果: " + dirDeleted);
                 }
-            } else {
-                System.out.println("图片文件不存在: " + filePath);
+
+                // 重置缓存和ID生成器
+                byId.clear();
+                totals.clear();
+                dirty.clear();
+                idGen.set(1);
+                changeLog.reset();
+            } finally {
+                updateLock.unlock();
             }
-        } catch (Exception e) {
-            System.err.println("删除文件异常: " + e.getMessage());
-        }
-    }
-    
-    public void deleteAll() {
-        try {
-            // 获取所有分类
-            List<Category> categories = findAll();
-            
-            // 删除每个分类
+            // 删除已按提交顺序排进写入日志，在锁外等待落盘
+            CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).join();
+
+            // 释放图片引用
             for (Category category : categories) {
-                // 先删除图片
-                deleteCategoryImage(category);
-                
-                // 再删除JSON文件
-                File jsonFile = new File(DIR, category.getId() + ".json");
-                if (jsonFile.exists()) {
-                    jsonFile.delete();
-                }
+                imageStore.release(category.getImagePath());
             }
-            
-            // 重置ID生成器
-            idGen.set(1);
-            System.out.println("已删除全部分类和图片");
+            log.info("已删除全部分类和图片");
             
         } catch (Exception e) {
-            System.err.println("删除全部分类失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除全部分类失败", e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package com.example.record.repository;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 最近的分类/商品变动记录，供 /api/sync 增量同步使用。
+ * <p>
+ * 仓库每次写入后调用 record，分配一个新的数据版本号并记下 (版本, 类型, id)。
+ * 记录保存在定长环形数组中，写满后覆盖最旧的记录；只记 id 不记内容，
+ * 同步时按 id 取当前状态，存在即新增/修改，不存在即已删除。
+ * 请求的版本早于日志中最旧的可用版本时，调用方需要返回全量数据。
+ * <p>
+ * 不加锁：数据版本只由这里递增，版本号连续，版本 v 的记录固定放在 v % capacity 号槽位，
+ * 槽位中是不可变的记录对象，读取时按版本号判断是还没写入、有效还是已被覆盖。
+ * <p>
+ * 监听器在记录的同时收到通知，用于精确失效缓存，不能在回调中做耗时操作。
+ * 并发记录时通知的先后不保证与版本号顺序一致。
+ */
+@Component
+public class ChangeLog {
+
+    public enum Type {
+        CATEGORY,
+        PRODUCT
+    }
+
+    public interface Listener {
+        /**
+         * categoryId 为变动对象所属的分类；分类本身变动时等于 id。
+         */
+        void changed(Type type, long id, long categoryId, long version);
+
+        // 全部删除等批量变动
+        void reset(long version);
+    }
+
+    /**
+     * since 之后有变动的分类和商品 id，按最后一次变动的先后排列。
+     */
+    public static class Changes {
+        private final long version;
+        private final Set<Long> categoryIds;
+        private final Set<Long> productIds;
+
+        Changes(long version, Set<Long> categoryIds, Set<Long> productIds) {
+            this.version = version;
+            this.categoryIds = categoryIds;
+            this.productIds = productIds;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Set<Long> getCategoryIds() {
+            return categoryIds;
+        }
+
+        public Set<Long> getProductIds() {
+            return productIds;
+        }
+    }
+
+    // 一条记录；type 为 null 表示清空
+    private static final class Entry {
+        final long version;
+        final Type type;
+        final long id;
+
+        Entry(long version, Type type, long id) {
+            this.version = version;
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private final DataVersion dataVersion;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicReferenceArray<Entry> slots;
+    // 早于 floor 的版本之后的变动已被清空，无法增量同步
+    private final AtomicLong floor;
+
+    public ChangeLog(DataVersion dataVersion, @Value("${app.sync.change-log-size:10000}") int capacity) {
+        this.dataVersion = dataVersion;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.floor = new AtomicLong(dataVersion.current());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 以下 record 方法记录一次变动并递增数据版本，在数据已对读取方可见之后调用。
+     */
+    long recordCategory(long id) {
+        return record(Type.CATEGORY, id, id);
+    }
+
+    long recordProduct(long id, long categoryId) {
+        return record(Type.PRODUCT, id, categoryId);
+    }
+
+    private long record(Type type, long id, long categoryId) {
+        long version = dataVersion.next();
+        slots.set(slotOf(version), new Entry(version, type, id));
+        for (Listener listener : listeners) {
+            listener.changed(type, id, categoryId, version);
+        }
+        return version;
+    }
+
+    /**
+     * 全部删除等批量变动不逐条记录，清空日志，此前的版本都需要全量同步。
+     */
+    long reset() {
+        long version = dataVersion.next();
+        floor.accumulateAndGet(version, Math::max);
+        slots.set(slotOf(version), new Entry(version, null, 0));
+        for (Listener listener : listeners) {
+            listener.reset(version);
+        }
+        return version;
+    }
+
+    /**
+     * 返回 since 之后的变动；since 太旧（或不是本进程发出的版本）时返回 null。
+     * 有版本已分配但记录还没写入时只返回到它之前，返回的版本也停在那里，客户端下次从那里继续。
+     */
+    public Changes since(long since) {
+        long current = dataVersion.current();
+        if (since < floor.get() || since > current || current - since > slots.length()) {
+            return null;
+        }
+
+        Set<Long> categoryIds = new LinkedHashSet<>();
+        Set<Long> productIds = new LinkedHashSet<>();
+        long upTo = since;
+        for (long v = since + 1; v <= current; v++) {
+            Entry e = slots.get(slotOf(v));
+            if (e == null || e.version < v) {
+                break;
+            }
+            if (e.version > v || e.type == null) {
+                // 已被覆盖或在此之后清空过
+                return null;
+            }
+            Set<Long> target = e.type == Type.CATEGORY ? categoryIds : productIds;
+            // 重复变动只保留最后一次的顺序
+            target.remove(e.id);
+            target.add(e.id);
+            upTo = v;
+        }
+        return new Changes(upTo, categoryIds, productIds);
+    }
+
+    private int slotOf(long version) {
+        return (int) Math.floorMod(version, (long) slots.length());
+    }
+}
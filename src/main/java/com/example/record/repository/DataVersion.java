@@ -0,0 +1,33 @@
+package com.example.record.repository;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分类/商品数据的版本号，仓库每次写入后经 ChangeLog 递增，用作列表接口的 ETag 和增量同步的版本。
+ * <p>
+ * 初始值取启动时间（微秒量级），重启后的版本号总是大于上次运行发出的版本号，
+ * 客户端缓存的旧 ETag 不会与新数据碰巧相等。
+ */
+@Component
+public class DataVersion {
+
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    public long current() {
+        return version.get();
+    }
+
+    // 在数据已对读取方可见之后调用
+    long next() {
+        return version.incrementAndGet();
+    }
+
+    /**
+     * 当前版本对应的 ETag。variant 区分同一版本下内容不同的响应（如按请求地址拼出的图片URL）。
+     */
+    public String etag(String variant) {
+        return "\"" + current() + "-" + Integer.toHexString(variant.hashCode()) + "\"";
+    }
+}
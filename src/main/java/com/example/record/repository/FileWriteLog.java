@@ -0,0 +1,488 @@
+package com.example.record.repository;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 分类/商品 JSON 文件写入的预写日志，保证崩溃后文件不会只写了一半，已返回成功的写入不会丢失。
+ * <p>
+ * 写入和删除先追加到 data/writelog/writes-{generation}.log，并发请求的记录由后台线程合并成一次 write + fsync（组提交），
+ * 落盘后再按日志顺序应用到目标文件：写同目录下的 .tmp 临时文件，再原子替换目标文件。应用时不 fsync，
+ * 由后台线程定期做检查点：切换日志文件，fsync 期间改动过的文件和目录，然后删除旧日志。
+ * 每个请求只等待一次共享的日志 fsync，不为自己的文件单独 fsync。
+ * 记录落盘即视为已提交：应用到目标文件失败时请求仍然成功，失败的记录在检查点时重试，
+ * 重试成功之前不删除旧日志，期间重启由日志重放补上。
+ * <p>
+ * 启动时先重放残留的日志（末尾写到一半或校验和不对的记录丢弃，这些写入还没有返回成功），再由仓库加载 JSON 文件。
+ * <p>
+ * 记录格式：int 长度, int CRC32, 然后是 byte 操作, short 路径长度, 路径（相对数据目录，UTF-8）, 文件内容。
+ */
+@Component
+public class FileWriteLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(FileWriteLog.class);
+
+    private static final String PREFIX = "writes-";
+    private static final String SUFFIX = ".log";
+    static final String TMP_SUFFIX = ".tmp";
+    private static final byte OP_WRITE = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int HEADER_SIZE = 8;
+    // 日志文件超过这个大小时不等定时，提前做检查点
+    private static final long CHECKPOINT_BYTES = 64L << 20;
+
+    private final Path root;
+    private final Path dir;
+    private final RepositoryMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // 有新记录或者关闭时通知后台线程
+    private final Condition changed = lock.newCondition();
+    // 保护 channel 的写入、切换、touched 和 unapplied
+    private final Object ioLock = new Object();
+
+    private ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel channel;
+    private long generation;
+    private long segmentBytes;
+    // 当前日志文件中的记录改动过的文件，检查点时 fsync
+    private Set<Path> touched = new HashSet<>();
+    // 已落盘但应用到目标文件失败的记录，同一文件只保留最后一条；之后同一文件应用成功时移除
+    private final Map<Path, Entry> unapplied = new LinkedHashMap<>();
+    private volatile boolean checkpointRequested;
+
+    private final Thread flusher;
+    private final ScheduledExecutorService checkpointer;
+
+    public FileWriteLog(@Value("${app.storage.data-dir:data}") String dataDir,
+            @Value("${app.storage.write-log.checkpoint-interval-seconds:30}") long checkpointIntervalSeconds,
+            RepositoryMetrics metrics) {
+        this.root = Paths.get(dataDir).toAbsolutePath().normalize();
+        this.dir = root.resolve("writelog");
+        this.metrics = metrics;
+        try {
+            Files.createDirectories(dir);
+            List<Path> existing = listGenerations();
+            replay(existing);
+            generation = existing.isEmpty() ? 1 : generationOf(existing.get(existing.size() - 1)) + 1;
+            channel = open(generation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        flusher = new Thread(this::flushLoop, "file-write-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-write-log-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointQuietly,
+                checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 写入整个文件，阻塞到日志落盘、文件内容已替换。
+     */
+    public void write(Path file, byte[] data) {
+        join(writeAsync(file, data));
+    }
+
+    /**
+     * 写入整个文件，不等待。返回的 future 在日志落盘、文件内容已替换后完成，失败时以 IOException 异常完成。
+     * 同一文件的多次写入按调用顺序应用。
+     */
+    public CompletableFuture<Void> writeAsync(Path file, byte[] data) {
+        return submit(new Entry(OP_WRITE, file.toAbsolutePath().normalize(), data));
+    }
+
+    public void delete(Path file) {
+        join(deleteAsync(file));
+    }
+
+    public CompletableFuture<Void> deleteAsync(Path file) {
+        return submit(new Entry(OP_DELETE, file.toAbsolutePath().normalize(), null));
+    }
+
+    private CompletableFuture<Void> submit(Entry entry) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("文件写入日志已关闭");
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            pending.add(entry);
+            changed.signalAll();
+            return entry.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw new UncheckedIOException("写入文件失败", (IOException) e.getCause());
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ArrayDeque<Entry> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayDeque<>();
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            IOException error = null;
+            try {
+                ByteBuffer buf = encode(batch);
+                synchronized (ioLock) {
+                    segmentBytes += buf.remaining();
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                    channel.force(false);
+                    // 日志已落盘，记录已提交，按顺序应用；应用失败的记下来由检查点重试，请求照常成功
+                    for (Entry e : batch) {
+                        if (applyQuietly(e)) {
+                            unapplied.remove(e.file);
+                        } else {
+                            unapplied.put(e.file, e);
+                        }
+                        touched.add(e.file);
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            RepositoryMetrics.record(metrics.writeLogFlush, start);
+            metrics.writeLogBatch.record(batch.size());
+            if (error == null && segmentBytes > CHECKPOINT_BYTES && !checkpointRequested && !checkpointer.isShutdown()) {
+                checkpointRequested = true;
+                try {
+                    checkpointer.execute(this::checkpointQuietly);
+                } catch (RejectedExecutionException e) {
+                    // 正在关闭，关闭时会再做一次检查点
+                }
+            }
+
+            if (error != null) {
+                lock.lock();
+                try {
+                    failure = error;
+                    // 之后的写入都不会再落盘
+                    batch.addAll(pending);
+                    pending.clear();
+                } finally {
+                    lock.unlock();
+                }
+                log.error("文件写入日志写入失败", error);
+                for (Entry e : batch) {
+                    e.future.completeExceptionally(error);
+                }
+                return;
+            }
+            // 在锁外完成 future，回调不阻塞新的写入
+            for (Entry e : batch) {
+                e.future.complete(null);
+            }
+        }
+    }
+
+    private boolean applyQuietly(Entry e) {
+        try {
+            apply(e.op, e.file, e.data);
+            return true;
+        } catch (IOException ex) {
+            log.warn("应用文件写入失败，检查点时重试: {}, {}", e.file, ex.getMessage());
+            return false;
+        }
+    }
+
+    // 先写同目录下的临时文件再原子替换，崩溃时目标文件要么是旧内容要么是新内容
+    private static void apply(byte op, Path file, byte[] data) throws IOException {
+        if (op == OP_DELETE) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+        try {
+            Files.write(tmp, data);
+        } catch (NoSuchFileException e) {
+            // 目录不存在，或者刚被清理空目录的删除操作删掉
+            Files.createDirectories(file.getParent());
+            Files.write(tmp, data);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private ByteBuffer encode(ArrayDeque<Entry> batch) {
+        int size = 0;
+        List<byte[]> paths = new ArrayList<>(batch.size());
+        for (Entry e : batch) {
+            byte[] path = relativize(e.file).getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            size += HEADER_SIZE + 1 + 2 + path.length + (e.data != null ? e.data.length : 0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        int i = 0;
+        for (Entry e : batch) {
+            byte[] path = paths.get(i++);
+            int bodyLength = 1 + 2 + path.length + (e.data != null ? e.data.length : 0);
+            int bodyStart = buf.position() + HEADER_SIZE;
+            buf.position(bodyStart);
+            buf.put(e.op).putShort((short) path.length).put(path);
+            if (e.data != null) {
+                buf.put(e.data);
+            }
+            crc.reset();
+            crc.update(buf.array(), bodyStart, bodyLength);
+            buf.putInt(bodyStart - HEADER_SIZE, bodyLength);
+            buf.putInt(bodyStart - HEADER_SIZE + 4, (int) crc.getValue());
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // 数据目录下的文件记相对路径，数据目录整体搬走后重放仍然有效
+    private String relativize(Path file) {
+        return file.startsWith(root) ? root.relativize(file).toString() : file.toString();
+    }
+
+    private void replay(List<Path> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        int applied = 0;
+        Set<Path> replayed = new HashSet<>();
+        CRC32 crc = new CRC32();
+        for (Path file : files) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (buf.remaining() >= HEADER_SIZE) {
+                int bodyLength = buf.getInt();
+                int checksum = buf.getInt();
+                if (bodyLength < 3 || bodyLength > buf.remaining()) {
+                    log.warn("文件写入日志末尾不完整，已忽略: {}", file);
+                    break;
+                }
+                crc.reset();
+                crc.update(buf.array(), buf.position(), bodyLength);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("文件写入日志记录校验失败，忽略其后的记录: {}", file);
+                    break;
+                }
+                int end = buf.position() + bodyLength;
+                byte op = buf.get();
+                byte[] path = new byte[buf.getShort() & 0xFFFF];
+                buf.get(path);
+                byte[] data = new byte[end - buf.position()];
+                buf.get(data);
+                Path target = root.resolve(new String(path, StandardCharsets.UTF_8));
+                apply(op, target, data);
+                replayed.add(target);
+                applied++;
+            }
+        }
+        sync(replayed);
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        log.info("重放文件写入日志记录数: {}, 文件数: {}", applied, replayed.size());
+    }
+
+    /**
+     * 检查点：重试应用失败的记录，切换日志文件，fsync 旧日志中改动过的文件和所在目录，然后删除旧日志。
+     * 仍有记录应用失败时保留旧日志，重启时重放。由后台线程定期调用，关闭时再调用一次。
+     */
+    public void checkpoint() {
+        List<Path> obsolete;
+        Set<Path> files;
+        int stillUnapplied;
+        checkpointRequested = false;
+        synchronized (ioLock) {
+            if (segmentBytes == 0 && unapplied.isEmpty()) {
+                return;
+            }
+            unapplied.values().removeIf(e -> {
+                touched.add(e.file);
+                return applyQuietly(e);
+            });
+            stillUnapplied = unapplied.size();
+            try {
+                obsolete = listGenerations();
+                channel.close();
+                generation++;
+                channel = open(generation);
+                segmentBytes = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            files = touched;
+            touched = new HashSet<>();
+        }
+        // 这些文件之后的改动都记在新日志中，fsync 不需要持有 ioLock
+        sync(files);
+        if (stillUnapplied > 0) {
+            // 旧日志连同之后的日志一起保留，下一次全部应用成功的检查点再删除
+            log.warn("仍有 {} 个文件写入未能应用，保留旧的文件写入日志", stillUnapplied);
+            return;
+        }
+        for (Path file : obsolete) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("删除旧文件写入日志失败: {}, {}", file, e.getMessage());
+            }
+        }
+        log.debug("文件写入日志检查点完成，文件数: {}", files.size());
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.warn("文件写入日志检查点失败: {}", e.getMessage());
+        }
+    }
+
+    // fsync 文件和所在目录；目录 fsync 保证 rename/删除本身落盘，不支持的平台上忽略
+    private static void sync(Set<Path> files) {
+        Set<Path> dirs = new HashSet<>();
+        for (Path file : files) {
+            dirs.add(file.getParent());
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            } catch (NoSuchFileException e) {
+                // 已被删除，目录 fsync 覆盖
+            } catch (IOException e) {
+                log.warn("fsync 文件失败: {}, {}", file, e.getMessage());
+            }
+        }
+        for (Path d : dirs) {
+            try (FileChannel ch = FileChannel.open(d, StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException e) {
+                log.debug("fsync 目录失败: {}, {}", d, e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpointQuietly();
+        try {
+            synchronized (ioLock) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("关闭文件写入日志失败: {}", e.getMessage());
+        }
+    }
+
+    private FileChannel open(long gen) throws IOException {
+        return FileChannel.open(dir.resolve(String.format("%s%020d%s", PREFIX, gen, SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> listGenerations() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> {
+                String name = f.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted((a, b) -> Long.compare(generationOf(a), generationOf(b))).toList();
+        }
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static final class Entry {
+        final byte op;
+        final Path file;
+        final byte[] data;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(byte op, Path file, byte[] data) {
+            this.op = op;
+            this.file = file;
+            this.data = data;
+        }
+    }
+}
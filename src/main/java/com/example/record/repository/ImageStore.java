@@ -0,0 +1,259 @@
+package com.example.record.repository;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上传图片的落盘和引用计数。
+ * <p>
+ * multipart 内容经固定大小的缓冲区一次读出：边写入 FileChannel 边计算 SHA-256，
+ * 不再把整张图片读进内存，也不再保存后回读校验。
+ * 文件头不是支持的图片格式、或者写入字节数超过上限时立即中止并删除临时文件。
+ * <p>
+ * 图片按内容寻址保存为 uploads/images/{sha256前2位}/{sha256}.{ext}，相同内容只存一份。
+ * 每个文件按引用它的分类/商品计数：save 产生一个引用，随分类/商品的保存转交给仓库；
+ * 仓库启动时对已有数据 retain，删除时 release，最后一个引用释放时才删除文件。
+ * 旧的 uploads/product、uploads/category 下的文件同样按路径计数。
+ */
+@Repository
+public class ImageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageStore.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 12;
+    private static final String CAS_DIR = "images";
+    private static final String URL_PREFIX = "/uploads/";
+
+    /**
+     * 一次上传的结果。path 是以 /uploads/ 开头的访问路径。
+     */
+    public static class StoredImage {
+        private final String path;
+        private final String sha256;
+        private final long size;
+
+        StoredImage(String path, String sha256, long size) {
+            this.path = path;
+            this.sha256 = sha256;
+            this.size = size;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final Path root;
+    private final long maxBytes;
+    private final RepositoryMetrics metrics;
+    // uploads 下的相对路径 -> 引用数。计数变化和文件的创建/删除都在 compute 内完成
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+
+    public ImageStore(
+            @Value("${app.storage.upload-dir:uploads}") String uploadDir,
+            @Value("${spring.servlet.multipart.max-file-size:10MB}") DataSize maxSize,
+            RepositoryMetrics metrics) {
+        this.root = Paths.get(System.getProperty("user.dir")).resolve(uploadDir);
+        this.maxBytes = maxSize.toBytes();
+        this.metrics = metrics;
+    }
+
+    /**
+     * 保存上传的图片并产生一个引用。内容不是图片或超过大小限制时抛出 IllegalArgumentException。
+     * 调用方没有把返回的路径保存到分类/商品时，需要 release 归还引用。
+     */
+    public StoredImage save(MultipartFile image) throws IOException {
+        // 声明的大小已经超限时不读内容
+        if (image.getSize() > maxBytes) {
+            throw new IllegalArgumentException("图片大小超过限制: " + maxBytes + " bytes");
+        }
+
+        long start = System.nanoTime();
+        Path dir = root.resolve(CAS_DIR);
+        Files.createDirectories(dir);
+        // 不用 createTempFile，它创建的文件权限是 600
+        Path tmp = dir.resolve(".upload-" + UUID.randomUUID() + ".tmp");
+        try {
+            MessageDigest digest = sha256();
+            long size;
+            String ext;
+            try (InputStream in = image.getInputStream();
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                byte[] header = in.readNBytes(HEADER_SIZE);
+                ext = extensionOf(header);
+                if (ext == null) {
+                    throw new IllegalArgumentException("不支持的图片格式");
+                }
+                digest.update(header);
+                writeFully(out, ByteBuffer.wrap(header));
+                size = header.length;
+
+                ReadableByteChannel src = Channels.newChannel(in);
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                while (src.read(buf) >= 0) {
+                    buf.flip();
+                    size += buf.remaining();
+                    if (size > maxBytes) {
+                        throw new IllegalArgumentException("图片大小超过限制: " + maxBytes + " bytes");
+                    }
+                    digest.update(buf.array(), 0, buf.limit());
+                    writeFully(out, buf);
+                    buf.clear();
+                }
+            }
+
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            String key = CAS_DIR + "/" + sha256.substring(0, 2) + "/" + sha256 + ext;
+            Path target = root.resolve(key);
+            boolean[] duplicate = new boolean[1];
+            refs.compute(key, (k, n) -> {
+                try {
+                    if (Files.exists(target)) {
+                        duplicate[0] = true;
+                    } else {
+                        Files.createDirectories(target.getParent());
+                        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return n == null ? 1 : n + 1;
+            });
+            RepositoryMetrics.record(metrics.imageUpload, start);
+            if (duplicate[0]) {
+                metrics.imageDeduplicated.increment();
+            }
+            log.debug("图片保存成功: {}, 大小: {} bytes, 已存在: {}", key, size, duplicate[0]);
+            return new StoredImage(URL_PREFIX + key, sha256, size);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // 内容已存在或保存失败时临时文件仍在
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 为已保存在分类/商品中的图片路径（完整 URL 或 /uploads/ 开头的相对路径）增加一个引用。
+     */
+    public void retain(String imagePath) {
+        String key = keyOf(imagePath);
+        if (key != null) {
+            refs.merge(key, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * 释放一个引用，计数从 1 降到 0 时删除文件。
+     * 没有登记过引用的路径（未能加载的数据引用的图片、不经这里放进目录的文件）不删除，只记录日志。
+     */
+    public void release(String imagePath) {
+        String key = keyOf(imagePath);
+        if (key == null) {
+            return;
+        }
+        refs.compute(key, (k, n) -> {
+            if (n == null) {
+                log.warn("释放未登记引用的图片，保留文件: {}", k);
+                return null;
+            }
+            if (n > 1) {
+                return n - 1;
+            }
+            try {
+                boolean deleted = Files.deleteIfExists(root.resolve(k));
+                log.debug("删除图片文件: {}, 结果: {}", k, deleted);
+            } catch (IOException e) {
+                log.warn("删除图片文件失败: {}, {}", k, e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    // 取 /uploads/ 之后的相对路径；外部 URL、空路径或包含 .. 的路径不归这里管理
+    static String keyOf(String imagePath) {
+        if (imagePath == null || imagePath.isEmpty()) {
+            return null;
+        }
+        int idx = imagePath.indexOf(URL_PREFIX);
+        if (idx < 0) {
+            return null;
+        }
+        String key = imagePath.substring(idx + URL_PREFIX.length());
+        int query = key.indexOf('?');
+        if (query >= 0) {
+            key = key.substring(0, query);
+        }
+        if (key.isEmpty() || key.contains("..")) {
+            return null;
+        }
+        return key;
+    }
+
+    // 按 JPEG / PNG / GIF / WEBP / BMP 的文件头识别格式，不是图片时返回 null
+    static String extensionOf(byte[] h) {
+        if (h.length >= 3 && (h[0] & 0xFF) == 0xFF && (h[1] & 0xFF) == 0xD8 && (h[2] & 0xFF) == 0xFF) {
+            return ".jpg";
+        }
+        if (h.length >= 8 && (h[0] & 0xFF) == 0x89 && h[1] == 'P' && h[2] == 'N' && h[3] == 'G') {
+            return ".png";
+        }
+        if (h.length >= 4 && h[0] == 'G' && h[1] == 'I' && h[2] == 'F' && h[3] == '8') {
+            return ".gif";
+        }
+        if (h.length >= 12 && h[0] == 'R' && h[1] == 'I' && h[2] == 'F' && h[3] == 'F'
+                && h[8] == 'W' && h[9] == 'E' && h[10] == 'B' && h[11] == 'P') {
+            return ".webp";
+        }
+        if (h.length >= 2 && h[0] == 'B' && h[1] == 'M') {
+            return ".bmp";
+        }
+        return null;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
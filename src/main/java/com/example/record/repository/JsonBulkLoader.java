@@ -0,0 +1,158 @@
+package com.example.record.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 启动时并行读取并解析一批目录下的 {id}.json 文件。
+ * 目录列举和文件解析都在有界线程池中进行，同一遍中顺带求出最大 id。
+ * <p>
+ * 同时做一遍损坏扫描：FileWriteLog 崩溃时留下的 .tmp 临时文件直接删除；
+ * 无法解析的文件改名为 {id}.json.corrupt 隔离并告警，保留原内容便于人工恢复。
+ */
+final class JsonBulkLoader {
+
+    private static final Logger log = LoggerFactory.getLogger(JsonBulkLoader.class);
+
+    // 每个解析任务处理的文件数
+    private static final int CHUNK_SIZE = 256;
+    static final String CORRUPT_SUFFIX = ".corrupt";
+
+    static final class Loaded<T> {
+        final List<T> items;
+        // 按文件名求出的最大 id，解析失败和已隔离的文件也计入，避免 id 被重复使用
+        final long maxId;
+        final int files;
+        final int failed;
+        final long elapsedMillis;
+
+        Loaded(List<T> items, long maxId, int files, int failed, long elapsedMillis) {
+            this.items = items;
+            this.maxId = maxId;
+            this.files = files;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    private JsonBulkLoader() {
+    }
+
+    /**
+     * threads <= 0 时按 CPU 数自动选择（IO 密集，取 2 倍，最多 16）。
+     */
+    static int resolveThreads(int threads) {
+        return threads > 0 ? threads : Math.min(16, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    static <T> Loaded<T> load(String label, List<File> dirs, Class<T> type, ObjectMapper mapper,
+            RepositoryMetrics metrics, int threads) {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(resolveThreads(threads), r -> {
+            Thread t = new Thread(r, "json-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            // 1. 并行列举目录
+            List<Future<File[]>> listings = new ArrayList<>(dirs.size());
+            for (File dir : dirs) {
+                listings.add(pool.submit(() -> dir.listFiles((d, name) -> name.endsWith(".json")
+                        || name.endsWith(FileWriteLog.TMP_SUFFIX) || name.endsWith(".json" + CORRUPT_SUFFIX))));
+            }
+            List<File> files = new ArrayList<>();
+            long quarantinedMaxId = 0;
+            for (Future<File[]> f : listings) {
+                File[] fs = f.get();
+                if (fs == null) {
+                    continue;
+                }
+                for (File file : fs) {
+                    String name = file.getName();
+                    if (name.endsWith(".json")) {
+                        files.add(file);
+                    } else if (name.endsWith(FileWriteLog.TMP_SUFFIX)) {
+                        // 写入日志已落盘的内容在重放时已应用，临时文件没有用处
+                        log.info("删除残留的临时文件: {}", file.getPath());
+                        file.delete();
+                    } else {
+                        quarantinedMaxId = Math.max(quarantinedMaxId, idOf(name));
+                    }
+                }
+            }
+
+            // 2. 分块并行解析
+            AtomicInteger failed = new AtomicInteger();
+            List<Future<Chunk<T>>> chunks = new ArrayList<>();
+            for (int i = 0; i < files.size(); i += CHUNK_SIZE) {
+                List<File> part = files.subList(i, Math.min(files.size(), i + CHUNK_SIZE));
+                chunks.add(pool.submit(() -> parse(part, type, mapper, metrics, failed)));
+            }
+            List<T> items = new ArrayList<>(files.size());
+            long maxId = quarantinedMaxId;
+            for (Future<Chunk<T>> f : chunks) {
+                Chunk<T> chunk = f.get();
+                items.addAll(chunk.items);
+                maxId = Math.max(maxId, chunk.maxId);
+            }
+
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            log.info("{}加载完成，文件数: {}, 解析失败: {}, 耗时: {}ms", label, files.size(), failed.get(), elapsed);
+            return new Loaded<>(items, maxId, files.size(), failed.get(), elapsed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static final class Chunk<T> {
+        final List<T> items = new ArrayList<>();
+        long maxId;
+    }
+
+    private static <T> Chunk<T> parse(List<File> files, Class<T> type, ObjectMapper mapper,
+            RepositoryMetrics metrics, AtomicInteger failed) {
+        Chunk<T> chunk = new Chunk<>();
+        for (File f : files) {
+            chunk.maxId = Math.max(chunk.maxId, idOf(f.getName()));
+            try {
+                chunk.items.add(JsonFiles.read(f, type, mapper, metrics));
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                quarantine(f, e, metrics);
+            }
+        }
+        return chunk;
+    }
+
+    private static long idOf(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf(".json")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void quarantine(File f, Exception cause, RepositoryMetrics metrics) {
+        metrics.corruptFiles.increment();
+        File target = new File(f.getPath() + CORRUPT_SUFFIX);
+        if (f.renameTo(target)) {
+            log.warn("文件已损坏，已隔离为: {}, 原因: {}", target.getPath(), cause.getMessage());
+        } else {
+            log.warn("文件已损坏，隔离失败: {}, 原因: {}", f.getPath(), cause.getMessage());
+        }
+    }
+}
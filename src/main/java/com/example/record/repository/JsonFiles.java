@@ -0,0 +1,57 @@
+package com.example.record.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 单个 JSON 文件的读写。磁盘 IO 和 Jackson 处理分开计时，便于区分慢在哪里。
+ */
+final class JsonFiles {
+
+    private JsonFiles() {
+    }
+
+    static <T> T read(File file, Class<T> type, ObjectMapper mapper, RepositoryMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        RepositoryMetrics.record(metrics.fileRead, start);
+
+        start = System.nanoTime();
+        T value = mapper.readValue(bytes, type);
+        RepositoryMetrics.record(metrics.jsonParse, start);
+        return value;
+    }
+
+    /**
+     * 经 FileWriteLog 写入，返回时日志已落盘、文件内容已原子替换。
+     */
+    static void write(File file, Object value, ObjectMapper mapper, FileWriteLog writeLog,
+            RepositoryMetrics metrics) throws IOException {
+        byte[] bytes = serialize(value, mapper, metrics);
+        long start = System.nanoTime();
+        writeLog.write(file.toPath(), bytes);
+        RepositoryMetrics.record(metrics.fileWrite, start);
+    }
+
+    /**
+     * 不等待落盘的写入，批量写多个文件时先全部提交再一起等待，共用一次日志 fsync。
+     */
+    static CompletableFuture<Void> writeAsync(File file, Object value, ObjectMapper mapper, FileWriteLog writeLog,
+            RepositoryMetrics metrics) throws IOException {
+        byte[] bytes = serialize(value, mapper, metrics);
+        long start = System.nanoTime();
+        return writeLog.writeAsync(file.toPath(), bytes)
+                .whenComplete((v, e) -> RepositoryMetrics.record(metrics.fileWrite, start));
+    }
+
+    private static byte[] serialize(Object value, ObjectMapper mapper, RepositoryMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = mapper.writeValueAsBytes(value);
+        RepositoryMetrics.record(metrics.jsonSerialize, start);
+        return bytes;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.record.repository;
+
+import com.example.record.model.Product;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 默认存储：每个商品一个 JSON 文件，data/products/category_{cid}/{id}.json。
+ * 写入和删除都经过 FileWriteLog。
+ */
+class JsonProductStore implements ProductStore {
+
+    private static final Logger log = LoggerFactory.getLogger(JsonProductStore.class);
+
+    private final String root;
+    private final ObjectMapper mapper;
+    private final RepositoryMetrics metrics;
+    private final FileWriteLog writeLog;
+    private final int loadThreads;
+
+    JsonProductStore(String root, ObjectMapper mapper, RepositoryMetrics metrics, FileWriteLog writeLog,
+            int loadThreads) {
+        this.root = root;
+        this.mapper = mapper;
+        this.metrics = metrics;
+        this.writeLog = writeLog;
+        this.loadThreads = loadThreads;
+        new File(root).mkdirs();
+    }
+
+    @Override
+    public long loadAll(Consumer<Product> sink) {
+        File[] dirs = new File(root).listFiles(File::isDirectory);
+        JsonBulkLoader.Loaded<Product> loaded = JsonBulkLoader.load("商品",
+                dirs != null ? List.of(dirs) : List.of(), Product.class, mapper, metrics, loadThreads);
+        loaded.items.forEach(sink);
+        return loaded.maxId;
+    }
+
+    @Override
+    public void write(Product p) {
+        try {
+            JsonFiles.write(fileOf(p), p, mapper, writeLog, metrics);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(Product p) {
+        try {
+            return JsonFiles.writeAsync(fileOf(p), p, mapper, writeLog, metrics);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 分类目录不存在时由写入日志在应用时创建
+    private File fileOf(Product p) {
+        return new File(new File(root, "category_" + p.getCategoryId()), p.getId() + ".json");
+    }
+
+    @Override
+    public void writeStock(Product p) {
+        write(p);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeStockAsync(Product p) {
+        try {
+            return writeAsync(p);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // 文件按分类分目录存放，新目录中的文件写好后再删除旧目录中的
+    @Override
+    public void moved(Product old) {
+        delete(old);
+    }
+
+    @Override
+    public void delete(Product product) {
+        // 找到对应的JSON文件
+        File dir = new File(root, "category_" + product.getCategoryId());
+        File jsonFile = new File(dir, product.getId() + ".json");
+
+        if (jsonFile.exists()) {
+            writeLog.delete(jsonFile.toPath());
+            log.debug("删除商品JSON文件: {}", jsonFile.getPath());
+
+            // 如果目录为空，删除目录
+            if (dir.exists() && dir.isDirectory() && dir.listFiles().length == 0) {
+                boolean dirDeleted = dir.delete();
+                log.debug("删除空商品目录: {}, 结果: {}", dir.getPath(), dirDeleted);
+            }
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        // 删除所有商品目录
+        File rootDir = new File(root);
+        if (rootDir.exists() && rootDir.isDirectory()) {
+            File[] categoryDirs = rootDir.listFiles(File::isDirectory);
+            if (categoryDirs != null) {
+                // 先把所有文件删除一起提交到写入日志，再清理空目录
+                List<CompletableFuture<Void>> deletes = new ArrayList<>();
+                for (File categoryDir : categoryDirs) {
+                    File[] files = categoryDir.listFiles(File::isFile);
+                    if (files != null) {
+                        for (File file : files) {
+                            deletes.add(writeLog.deleteAsync(file.toPath()));
+                        }
+                    }
+                }
+                CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).join();
+                for (File categoryDir : categoryDirs) {
+                    deleteDirectory(categoryDir);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void deleteDirectory(File dir) {
+        if (dir.exists() && dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        deleteDirectory(file);
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.example.record.repository;
+
+import com.example.record.model.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 单文件内存映射存储（app.storage.mode=mmap）。
+ * <p>
+ * products.dat 由 64 字节文件头和若干 64 字节定长记录组成：
+ * id, categoryId, stock, name/imagePath 在 products.heap 中的偏移和长度, flags, version, reorderLevel。
+ * 字符串追加写入 products.heap，内容没变的字符串沿用原来的偏移；库存更新直接改映射内存中的 stock 和 version 字段。
+ * 修改和删除留下的无用字节超过 1MB 且多于有效字节时压缩：有效字符串写入新的 products.heap.N，
+ * 连同改过偏移的记录写成 products.dat.compact，再原子替换 products.dat，文件头中的 N 指向当前使用的堆文件。
+ * 替换之前崩溃时仍使用旧文件，启动时删除残留的其他堆文件。
+ * 首次启动时如果 products.dat 不存在，会把 data/products 下的 JSON 文件迁移过来：先写入 products.dat.migrating，
+ * 全部写完并 fsync 后再原子重命名为 products.dat，原目录重命名为 products.migrated 作为备份。
+ * 迁移中途崩溃时 products.dat 仍不存在，下次启动重新迁移。同一 id 有多份 JSON 时只迁移较新的一份。
+ * <p>
+ * 写入只落到页缓存，进程崩溃不丢数据；关闭时 force 到磁盘。
+ * 写堆文件和压缩时的 fsync 会阻塞，所以用 ReentrantLock 而不是 synchronized，虚拟线程等待时不占住载体线程。
+ */
+class MmapProductStore implements ProductStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MmapProductStore.class);
+
+    private static final int MAGIC = 0x50524453; // "PRDS"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOT_COUNT = 8;
+    private static final int H_MAX_ID = 16;
+    // 当前堆文件的编号，0 为 products.heap（旧文件中为 0）
+    private static final int H_HEAP_GEN = 24;
+
+    static final int RECORD_SIZE = 64;
+    private static final int R_ID = 0;
+    private static final int R_CATEGORY = 8;
+    private static final int R_STOCK = 16;
+    private static final int R_NAME_OFF = 24;
+    private static final int R_IMAGE_OFF = 32;
+    private static final int R_NAME_LEN = 40;
+    private static final int R_IMAGE_LEN = 44;
+    private static final int R_FLAGS = 48;
+    // 版本号只占 4 字节（原预留位置，旧文件中为 0），按无符号数读出；超出范围的写入直接拒绝
+    private static final int R_VERSION = 52;
+    private static final long MAX_VERSION = 0xFFFFFFFFL;
+    private static final int R_REORDER = 56;
+
+    private static final int FLAG_LIVE = 1;
+    // reorderLevel 字段有值；旧文件中该位为 0，读出为 null
+    private static final int FLAG_REORDER = 2;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+    private static final String DATA_FILE = "products.dat";
+    private static final String HEAP_FILE = "products.heap";
+    private static final String COMPACT_FILE = "products.dat.compact";
+    private static final String MIGRATING_FILE = "products.dat.migrating";
+
+    private final Path dir;
+    private FileChannel dataChannel;
+    private FileChannel heapChannel;
+    private final JsonProductStore legacy;
+    private final File legacyRoot;
+    private final boolean migrate;
+    // 迁移完成、products.dat.migrating 重命名之前不压缩，压缩会替换 products.dat
+    private boolean migrating;
+
+    private MappedByteBuffer records;
+    private int capacity;
+    private int slotCount;
+    private long maxId;
+    private long heapSize;
+    // 堆中仍被记录引用的字节数，其余为修改和删除留下的无用字节
+    private long liveHeapBytes;
+    private long heapGen;
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    MmapProductStore(Path dir, JsonProductStore legacy, File legacyRoot) {
+        this.legacy = legacy;
+        this.legacyRoot = legacyRoot;
+        this.dir = dir;
+        Path dataFile = dir.resolve(DATA_FILE);
+        try {
+            Files.createDirectories(dir);
+            migrate = !Files.exists(dataFile);
+            migrating = migrate;
+            if (migrate) {
+                // 上次迁移中途崩溃留下的文件作废，重新迁移
+                Path migratingFile = dir.resolve(MIGRATING_FILE);
+                Files.deleteIfExists(migratingFile);
+                dataChannel = FileChannel.open(migratingFile,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                dataChannel = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+
+            if (migrate) {
+                heapChannel = openHeap(0);
+                heapChannel.truncate(0);
+                map(INITIAL_SLOTS);
+                records.putInt(H_MAGIC, MAGIC);
+                records.putInt(H_VERSION, VERSION);
+                writeHeader();
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                dataChannel.read(header, 0);
+                if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+                    throw new IllegalStateException("products.dat 格式不正确: " + dataFile);
+                }
+                slotCount = header.getInt(H_SLOT_COUNT);
+                maxId = header.getLong(H_MAX_ID);
+                heapGen = header.getLong(H_HEAP_GEN);
+                heapChannel = openHeap(heapGen);
+                map(Math.max(INITIAL_SLOTS, Integer.highestOneBit(Math.max(1, slotCount)) * 2));
+            }
+            heapSize = heapChannel.size();
+            deleteStaleFiles();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 全部写完后 fsync，再原子重命名为 products.dat；映射和 channel 跟随文件本身，不需要重新打开
+    private void finishMigration() {
+        try {
+            records.force();
+            heapChannel.force(true);
+            dataChannel.force(true);
+            Files.move(dir.resolve(MIGRATING_FILE), dir.resolve(DATA_FILE), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        syncDir();
+        migrating = false;
+    }
+
+    private FileChannel openHeap(long gen) throws IOException {
+        return FileChannel.open(heapPath(gen),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path heapPath(long gen) {
+        return dir.resolve(gen == 0 ? HEAP_FILE : HEAP_FILE + "." + gen);
+    }
+
+    // 压缩中途崩溃留下的新堆文件和记录文件，以及压缩完成后没来得及删除的旧堆文件
+    private void deleteStaleFiles() throws IOException {
+        String current = heapPath(heapGen).getFileName().toString();
+        try (var files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                String name = f.getFileName().toString();
+                if (name.equals(COMPACT_FILE) || (!migrating && name.equals(MIGRATING_FILE))
+                        || (name.startsWith(HEAP_FILE) && !name.equals(current))) {
+                    Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long loadAll(Consumer<Product> sink) {
+        lock.lock();
+        try {
+            if (migrate) {
+                // 换分类时崩溃会留下同一 id 的多份 JSON，只迁移较新的一份，规则与仓库加载时相同
+                Map<Long, Product> latest = new LinkedHashMap<>();
+                long legacyMax = legacy.loadAll(p -> latest.merge(p.getId(), p,
+                        (a, b) -> ProductStore.isNewerCopy(b, a) ? b : a));
+                for (Product p : latest.values()) {
+                    write(p);
+                    sink.accept(p);
+                }
+                maxId = Math.max(maxId, legacyMax);
+                writeHeader();
+                finishMigration();
+                if (legacyRoot.exists() && slotCount > 0) {
+                    File backup = new File(legacyRoot.getParentFile(), legacyRoot.getName() + ".migrated");
+                    boolean renamed = legacyRoot.renameTo(backup);
+                    log.info("商品JSON已迁移到 products.dat，数量: {}，原目录备份: {}, 结果: {}", slotCount, backup.getPath(), renamed);
+                }
+                return maxId;
+            }
+
+            for (int slot = 0; slot < slotCount; slot++) {
+                int base = offsetOf(slot);
+                if ((records.getInt(base + R_FLAGS) & FLAG_LIVE) == 0) {
+                    freeSlots.add(slot);
+                    continue;
+                }
+                Product p = new Product();
+                p.setId(records.getLong(base + R_ID));
+                p.setCategoryId(records.getLong(base + R_CATEGORY));
+                p.setStock(records.getLong(base + R_STOCK));
+                p.setName(readString(records.getLong(base + R_NAME_OFF), records.getInt(base + R_NAME_LEN)));
+                p.setImagePath(readString(records.getLong(base + R_IMAGE_OFF), records.getInt(base + R_IMAGE_LEN)));
+                liveHeapBytes += Math.max(0, records.getInt(base + R_NAME_LEN))
+                        + Math.max(0, records.getInt(base + R_IMAGE_LEN));
+                p.setVersion(Integer.toUnsignedLong(records.getInt(base + R_VERSION)));
+                if ((records.getInt(base + R_FLAGS) & FLAG_REORDER) != 0) {
+                    p.setReorderLevel(records.getLong(base + R_REORDER));
+                }
+                slots.put(p.getId(), slot);
+                sink.accept(p);
+            }
+            log.info("商品从 products.dat 加载完成，数量: {}", slots.size());
+            maybeCompact();
+            return maxId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(Product p) {
+        lock.lock();
+        try {
+            // 先检查版本号，超出范围时记录保持原样
+            int version = versionOf(p);
+            Integer slot = slots.get(p.getId());
+            boolean existing = slot != null;
+            if (slot == null) {
+                slot = allocateSlot();
+                slots.put(p.getId(), slot);
+            }
+            int base = offsetOf(slot);
+            records.putLong(base + R_ID, p.getId());
+            records.putLong(base + R_CATEGORY, p.getCategoryId());
+            records.putLong(base + R_STOCK, p.getStock() != null ? p.getStock() : 0L);
+            writeString(base + R_NAME_OFF, base + R_NAME_LEN, p.getName(), existing);
+            writeString(base + R_IMAGE_OFF, base + R_IMAGE_LEN, p.getImagePath(), existing);
+            records.putInt(base + R_VERSION, version);
+            records.putLong(base + R_REORDER, p.getReorderLevel() != null ? p.getReorderLevel() : 0L);
+            records.putInt(base + R_FLAGS, p.getReorderLevel() != null ? FLAG_LIVE | FLAG_REORDER : FLAG_LIVE);
+
+            if (p.getId() > maxId) {
+                maxId = p.getId();
+            }
+            writeHeader();
+            maybeCompact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writeStock(Product p) {
+        lock.lock();
+        try {
+            Integer slot = slots.get(p.getId());
+            if (slot == null) {
+                write(p);
+                return;
+            }
+            int version = versionOf(p);
+            records.putLong(offsetOf(slot) + R_STOCK, p.getStock());
+            records.putInt(offsetOf(slot) + R_VERSION, version);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int versionOf(Product p) {
+        long version = p.getVersion() != null ? p.getVersion() : 0L;
+        if (version < 0 || version > MAX_VERSION) {
+            throw new IllegalStateException("商品版本号超出 products.dat 的存储范围: " + p.getId() + ", " + version);
+        }
+        return (int) version;
+    }
+
+    // 记录按 id 定位，分类只是记录中的一个字段
+    @Override
+    public void moved(Product old) {
+    }
+
+    @Override
+    public void delete(Product p) {
+        lock.lock();
+        try {
+            Integer slot = slots.remove(p.getId());
+            if (slot != null) {
+                int base = offsetOf(slot);
+                liveHeapBytes -= Math.max(0, records.getInt(base + R_NAME_LEN))
+                        + Math.max(0, records.getInt(base + R_IMAGE_LEN));
+                records.putInt(base + R_FLAGS, 0);
+                freeSlots.add(slot);
+                maybeCompact();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        lock.lock();
+        try {
+            slots.clear();
+            freeSlots.clear();
+            slotCount = 0;
+            maxId = 0;
+            writeHeader();
+            try {
+                heapChannel.truncate(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            heapSize = 0;
+            liveHeapBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            try {
+                records.force();
+                heapChannel.force(true);
+                dataChannel.close();
+                heapChannel.close();
+            } catch (IOException e) {
+                log.warn("关闭 products.dat 失败: {}", e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int allocateSlot() {
+        Integer free = freeSlots.poll();
+        if (free != null) {
+            return free;
+        }
+        if (slotCount == capacity) {
+            records.force();
+            map(capacity * 2);
+        }
+        return slotCount++;
+    }
+
+    private void map(int slotCapacity) {
+        try {
+            // READ_WRITE 映射超过文件长度时会自动扩展文件
+            records = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) slotCapacity * RECORD_SIZE);
+            capacity = slotCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeHeader() {
+        records.putInt(H_SLOT_COUNT, slotCount);
+        records.putLong(H_MAX_ID, maxId);
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    // 长度 -1 表示 null；overwrite 为 true 时记录中已有字符串，内容相同则沿用原来的偏移
+    private void writeString(int offPos, int lenPos, String s, boolean overwrite) {
+        byte[] bytes = s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+        if (overwrite) {
+            int oldLen = records.getInt(lenPos);
+            if (bytes == null ? oldLen < 0
+                    : oldLen == bytes.length && Arrays.equals(readBytes(records.getLong(offPos), oldLen), bytes)) {
+                return;
+            }
+            liveHeapBytes -= Math.max(0, oldLen);
+        }
+        if (bytes == null) {
+            records.putLong(offPos, 0);
+            records.putInt(lenPos, -1);
+            return;
+        }
+        long off = heapSize;
+        try {
+            writeFully(heapChannel, bytes, off);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        heapSize += bytes.length;
+        liveHeapBytes += bytes.length;
+        records.putLong(offPos, off);
+        records.putInt(lenPos, bytes.length);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    private String readString(long off, int len) {
+        if (len < 0) {
+            return null;
+        }
+        return new String(readBytes(off, len), StandardCharsets.UTF_8);
+    }
+
+    // 文件被截断时返回实际读到的部分
+    private byte[] readBytes(long off, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try {
+            long pos = off;
+            while (buf.hasRemaining()) {
+                int n = heapChannel.read(buf, pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.position() == len ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private void maybeCompact() {
+        if (migrating) {
+            return;
+        }
+        long garbage = heapSize - liveHeapBytes;
+        if (garbage >= MIN_COMPACT_BYTES && garbage > liveHeapBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * 把有效字符串写入新的堆文件，记录改为新偏移后写入 products.dat.compact，fsync 后原子替换 products.dat。
+     * 替换前失败时删除新文件、继续使用旧文件。
+     */
+    private void compact() {
+        long start = System.nanoTime();
+        long gen = heapGen + 1;
+        Path newHeap = heapPath(gen);
+        Path tmpData = dir.resolve(COMPACT_FILE);
+        long newSize = 0;
+        try (FileChannel heapOut = FileChannel.open(newHeap, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             FileChannel dataOut = FileChannel.open(tmpData, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = dataOut.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            out.put(0, records, 0, offsetOf(slotCount));
+            for (int slot : slots.values()) {
+                int base = offsetOf(slot);
+                newSize = copyString(heapOut, out, base + R_NAME_OFF, base + R_NAME_LEN, newSize);
+                newSize = copyString(heapOut, out, base + R_IMAGE_OFF, base + R_IMAGE_LEN, newSize);
+            }
+            out.putLong(H_HEAP_GEN, gen);
+            heapOut.force(true);
+            out.force();
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("压缩 products.heap 失败，继续使用原文件: {}", e.getMessage());
+            try {
+                Files.deleteIfExists(tmpData);
+                Files.deleteIfExists(newHeap);
+            } catch (IOException ignored) {
+                // 下次启动时清理
+            }
+            return;
+        }
+
+        long oldSize = heapSize;
+        Path oldHeap = heapPath(heapGen);
+        try {
+            Files.move(tmpData, dir.resolve(DATA_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDir();
+            dataChannel.close();
+            heapChannel.close();
+            dataChannel = FileChannel.open(dir.resolve(DATA_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            heapChannel = openHeap(gen);
+            map(capacity);
+            Files.deleteIfExists(oldHeap);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        heapGen = gen;
+        heapSize = newSize;
+        liveHeapBytes = newSize;
+        log.info("products.heap 压缩完成: {} -> {} 字节，耗时 {} ms", oldSize, newSize,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private long copyString(FileChannel heapOut, MappedByteBuffer out, int offPos, int lenPos, long pos)
+            throws IOException {
+        int len = records.getInt(lenPos);
+        if (len < 0) {
+            return pos;
+        }
+        writeFully(heapOut, readBytes(records.getLong(offPos), len), pos);
+        out.putLong(offPos, pos);
+        return pos + len;
+    }
+
+    // rename 本身落盘；不支持目录 fsync 的平台上忽略
+    private void syncDir() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            log.debug("fsync 目录失败: {}, {}", dir, e.getMessage());
+        }
+    }
+}
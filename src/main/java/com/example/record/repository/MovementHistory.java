@@ -0,0 +1,464 @@
+package com.example.record.repository;
+
+import com.example.record.model.MovementRollup;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 库存变动流水和按小时/按天的汇总。
+ * <p>
+ * 每次入库/出库/设置库存由 ProductRepository 调用 record，记录 (时间, 商品, 分类, 变动量, 变动后库存)。
+ * 流水按列存放在几个 long 数组中，后台线程定期把缓冲区整块写到 data/movements/movements-{yyyyMMdd}.bin
+ * （每条 40 字节），缓冲区写满时提前写盘。
+ * <p>
+ * 汇总在 record 时增量更新：按商品、按分类各有小时和天两级，每个桶记入库数量、出库数量和变动次数。
+ * 变动量为正计入库，为负计出库（设置库存按差值计）。报表查询只读汇总，不扫描流水。
+ * <p>
+ * record 在商品锁内调用，不经过全局锁：流水缓冲区按商品 id 分段加锁，汇总桶的计数是 LongAdder，
+ * 当前小时和当天的桶边界缓存下来，跨过边界时才重新做时区换算。
+ * 启动时重放保留期内的流水文件重建汇总；小时汇总只在内存中保留 hourly-retention-days 天。
+ */
+@Component
+public class MovementHistory {
+
+    private static final Logger log = LoggerFactory.getLogger(MovementHistory.class);
+
+    public enum Granularity {
+        HOUR,
+        DAY
+    }
+
+    public enum Scope {
+        PRODUCT,
+        CATEGORY
+    }
+
+    static final int RECORD_SIZE = 40;
+    private static final String PREFIX = "movements-";
+    private static final String SUFFIX = ".bin";
+    private static final DateTimeFormatter FILE_DATE = DateTimeFormatter.BASIC_ISO_DATE;
+
+    // 流水缓冲区分段数，必须是 2 的幂
+    private static final int STRIPES = 16;
+
+    private final Path dir;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final int retentionDays;
+    private final int hourlyRetentionDays;
+    // 每段缓冲区的初始容量，写满时提前写盘
+    private final int stripeSize;
+
+    // 尚未写盘的流水，按商品 id 分段，每段一把锁
+    private final Columns[] active = new Columns[STRIPES];
+    private final ReentrantLock[] activeLocks = new ReentrantLock[STRIPES];
+    // [粒度][范围]
+    private final Rollup[][] rollups;
+    // 当前小时和当天的桶边界
+    private volatile Window window;
+    // 写盘和清空互斥
+    private final ReentrantLock spillLock = new ReentrantLock();
+
+    private final ScheduledExecutorService spiller;
+
+    public MovementHistory(
+            @Value("${app.storage.data-dir:data}") String dataDir,
+            @Value("${app.movements.buffer-size:8192}") int bufferSize,
+            @Value("${app.movements.spill-interval-seconds:5}") long spillIntervalSeconds,
+            @Value("${app.movements.retention-days:400}") int retentionDays,
+            @Value("${app.movements.hourly-retention-days:31}") int hourlyRetentionDays) throws IOException {
+        this.dir = Paths.get(dataDir, "movements");
+        this.stripeSize = Math.max(64, bufferSize / STRIPES);
+        this.retentionDays = retentionDays;
+        this.hourlyRetentionDays = hourlyRetentionDays;
+        for (int i = 0; i < STRIPES; i++) {
+            active[i] = new Columns(stripeSize);
+            activeLocks[i] = new ReentrantLock();
+        }
+        this.rollups = new Rollup[Granularity.values().length][Scope.values().length];
+        for (Rollup[] byScope : rollups) {
+            for (int s = 0; s < byScope.length; s++) {
+                byScope[s] = new Rollup();
+            }
+        }
+        this.window = Window.of(System.currentTimeMillis(), zone);
+        Files.createDirectories(dir);
+        replay();
+
+        spiller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "movement-spiller");
+            t.setDaemon(true);
+            return t;
+        });
+        spiller.scheduleWithFixedDelay(this::spillQuietly, spillIntervalSeconds, spillIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录一次库存变动，delta 为 0 时忽略。
+     */
+    void record(long productId, long categoryId, long delta, long stockAfter) {
+        if (delta == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean full;
+        int stripe = (int) (productId ^ (productId >>> 32)) & (STRIPES - 1);
+        ReentrantLock lock = activeLocks[stripe];
+        lock.lock();
+        try {
+            Columns columns = active[stripe];
+            columns.add(now, productId, categoryId, delta, stockAfter);
+            full = columns.size == stripeSize;
+        } finally {
+            lock.unlock();
+        }
+        apply(now, productId, categoryId, delta);
+        if (full) {
+            spiller.execute(this::spillQuietly);
+        }
+    }
+
+    /**
+     * 查询 [from, to) 内的汇总，id 为 null 时返回该范围下所有商品/分类的汇总。
+     * 结果按 id、桶时间排序，只包含有变动的桶。
+     */
+    public List<MovementRollup> query(Granularity granularity, Scope scope, Long id, Instant from, Instant to) {
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        List<MovementRollup> rows = new ArrayList<>();
+        Map<Long, ConcurrentSkipListMap<Long, Bucket>> byId = rollups[granularity.ordinal()][scope.ordinal()].byId;
+        Map<Long, ConcurrentSkipListMap<Long, Bucket>> selected = new TreeMap<>();
+        if (id != null) {
+            ConcurrentSkipListMap<Long, Bucket> buckets = byId.get(id);
+            if (buckets != null) {
+                selected.put(id, buckets);
+            }
+        } else {
+            selected.putAll(byId);
+        }
+        // 与 record 并发时读到的是某一时刻附近的计数，同一桶的三个值可能相差正在进行的一次变动
+        for (Map.Entry<Long, ConcurrentSkipListMap<Long, Bucket>> e : selected.entrySet()) {
+            NavigableMap<Long, Bucket> range = e.getValue().subMap(fromMillis, true, toMillis, false);
+            for (Map.Entry<Long, Bucket> bucket : range.entrySet()) {
+                Bucket c = bucket.getValue();
+                MovementRollup row = new MovementRollup();
+                row.setId(e.getKey());
+                row.setStart(bucket.getKey());
+                row.setInUnits(c.in.sum());
+                row.setOutUnits(c.out.sum());
+                row.setMovements(c.count.sum());
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private void apply(long time, long productId, long categoryId, long delta) {
+        Window w = windowOf(time);
+        add(Granularity.HOUR, Scope.PRODUCT, productId, w.hourStart, delta);
+        add(Granularity.HOUR, Scope.CATEGORY, categoryId, w.hourStart, delta);
+        add(Granularity.DAY, Scope.PRODUCT, productId, w.dayStart, delta);
+        add(Granularity.DAY, Scope.CATEGORY, categoryId, w.dayStart, delta);
+    }
+
+    // 绝大多数记录落在缓存的当前小时内，不做时区换算
+    private Window windowOf(long time) {
+        Window w = window;
+        if (!w.contains(time)) {
+            w = Window.of(time, zone);
+            window = w;
+        }
+        return w;
+    }
+
+    private void add(Granularity granularity, Scope scope, long id, long bucket, long delta) {
+        Map<Long, ConcurrentSkipListMap<Long, Bucket>> byId = rollups[granularity.ordinal()][scope.ordinal()].byId;
+        ConcurrentSkipListMap<Long, Bucket> buckets = byId.get(id);
+        Bucket c = buckets != null ? buckets.get(bucket) : null;
+        if (c == null) {
+            // 新桶在 compute 中创建，与 pruneHourly 删除空的 id 互斥，不会加到已被移除的 map 上
+            Bucket[] created = new Bucket[1];
+            byId.compute(id, (k, existing) -> {
+                ConcurrentSkipListMap<Long, Bucket> target = existing != null ? existing : new ConcurrentSkipListMap<>();
+                created[0] = target.computeIfAbsent(bucket, b -> new Bucket());
+                return target;
+            });
+            c = created[0];
+        }
+        if (delta > 0) {
+            c.in.add(delta);
+        } else {
+            c.out.add(-delta);
+        }
+        c.count.increment();
+    }
+
+    private void spillQuietly() {
+        try {
+            spill();
+        } catch (Exception e) {
+            log.warn("库存流水写盘失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 把缓冲区中的流水追加到按天划分的文件，并清理过期的文件和小时汇总。
+     */
+    void spill() throws IOException {
+        spillLock.lock();
+        try {
+            for (int i = 0; i < STRIPES; i++) {
+                Columns batch = null;
+                activeLocks[i].lock();
+                try {
+                    if (active[i].size > 0) {
+                        batch = active[i];
+                        active[i] = new Columns(stripeSize);
+                    }
+                } finally {
+                    activeLocks[i].unlock();
+                }
+                if (batch != null) {
+                    write(batch);
+                }
+            }
+            pruneHourly();
+            deleteExpiredFiles();
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    // 一批流水可能跨天，按天分组写入对应的文件；文件中记录的顺序不影响重放
+    private void write(Columns batch) throws IOException {
+        int i = 0;
+        while (i < batch.size) {
+            LocalDate day = Instant.ofEpochMilli(batch.times[i]).atZone(zone).toLocalDate();
+            ByteBuffer buf = ByteBuffer.allocate((batch.size - i) * RECORD_SIZE);
+            while (i < batch.size && Instant.ofEpochMilli(batch.times[i]).atZone(zone).toLocalDate().equals(day)) {
+                buf.putLong(batch.times[i]).putLong(batch.productIds[i]).putLong(batch.categoryIds[i])
+                        .putLong(batch.deltas[i]).putLong(batch.stocks[i]);
+                i++;
+            }
+            buf.flip();
+            try (FileChannel out = FileChannel.open(fileOf(day),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        deleteExpiredFiles();
+        long events = 0;
+        LocalDate hourlyFrom = LocalDate.now(zone).minusDays(hourlyRetentionDays);
+        for (Path file : listFiles()) {
+            boolean hourly = !dateOf(file).isBefore(hourlyFrom);
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            // 末尾不完整的记录（写到一半崩溃）忽略
+            while (buf.remaining() >= RECORD_SIZE) {
+                long time = buf.getLong();
+                long productId = buf.getLong();
+                long categoryId = buf.getLong();
+                long delta = buf.getLong();
+                buf.getLong();
+                if (hourly) {
+                    apply(time, productId, categoryId, delta);
+                } else {
+                    long day = windowOf(time).dayStart;
+                    add(Granularity.DAY, Scope.PRODUCT, productId, day, delta);
+                    add(Granularity.DAY, Scope.CATEGORY, categoryId, day, delta);
+                }
+                events++;
+            }
+        }
+        if (events > 0) {
+            log.info("库存流水重放完成，记录数: {}", events);
+        }
+    }
+
+    // 过期的桶不会再有新的变动，只有整个 id 变空时需要与 add 互斥
+    private void pruneHourly() {
+        long cutoff = LocalDate.now(zone).minusDays(hourlyRetentionDays).atStartOfDay(zone).toInstant().toEpochMilli();
+        for (Rollup rollup : rollups[Granularity.HOUR.ordinal()]) {
+            Map<Long, ConcurrentSkipListMap<Long, Bucket>> byId = rollup.byId;
+            for (Long id : new ArrayList<>(byId.keySet())) {
+                byId.computeIfPresent(id, (k, buckets) -> {
+                    buckets.headMap(cutoff).clear();
+                    return buckets.isEmpty() ? null : buckets;
+                });
+            }
+        }
+    }
+
+    private void deleteExpiredFiles() throws IOException {
+        LocalDate cutoff = LocalDate.now(zone).minusDays(retentionDays);
+        for (Path file : listFiles()) {
+            if (dateOf(file).isBefore(cutoff)) {
+                Files.deleteIfExists(file);
+                log.info("删除过期的库存流水文件: {}", file.getFileName());
+            }
+        }
+    }
+
+    private Path fileOf(LocalDate day) {
+        return dir.resolve(PREFIX + FILE_DATE.format(day) + SUFFIX);
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> {
+                String name = f.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private static LocalDate dateOf(Path file) {
+        String name = file.getFileName().toString();
+        return LocalDate.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), FILE_DATE);
+    }
+
+    /**
+     * 全部删除商品时清空汇总和流水文件（商品 id 会从头分配）。与 spill 互斥，避免旧流水写进新文件。
+     */
+    void reset() {
+        spillLock.lock();
+        try {
+            for (int i = 0; i < STRIPES; i++) {
+                activeLocks[i].lock();
+                try {
+                    active[i] = new Columns(stripeSize);
+                } finally {
+                    activeLocks[i].unlock();
+                }
+            }
+            for (Rollup[] byScope : rollups) {
+                for (Rollup rollup : byScope) {
+                    rollup.byId.clear();
+                }
+            }
+            for (Path file : listFiles()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            log.warn("清空库存流水失败: {}", e.getMessage());
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        spiller.shutdown();
+        spillQuietly();
+    }
+
+    // 一种粒度、一种范围的汇总：id -> 桶起始时间(毫秒) -> 计数
+    private static final class Rollup {
+        final Map<Long, ConcurrentSkipListMap<Long, Bucket>> byId = new ConcurrentHashMap<>();
+    }
+
+    // 桶内的计数：入库数量、出库数量、变动次数
+    private static final class Bucket {
+        final LongAdder in = new LongAdder();
+        final LongAdder out = new LongAdder();
+        final LongAdder count = new LongAdder();
+    }
+
+    // 一个小时桶和所在天桶的边界，[start, end)
+    private static final class Window {
+        final long hourStart;
+        final long hourEnd;
+        final long dayStart;
+        final long dayEnd;
+
+        private Window(long hourStart, long hourEnd, long dayStart, long dayEnd) {
+            this.hourStart = hourStart;
+            this.hourEnd = hourEnd;
+            this.dayStart = dayStart;
+            this.dayEnd = dayEnd;
+        }
+
+        static Window of(long time, ZoneId zone) {
+            ZonedDateTime at = Instant.ofEpochMilli(time).atZone(zone);
+            ZonedDateTime hour = at.truncatedTo(ChronoUnit.HOURS);
+            LocalDate date = at.toLocalDate();
+            return new Window(hour.toInstant().toEpochMilli(), hour.plusHours(1).toInstant().toEpochMilli(),
+                    date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                    date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+        }
+
+        boolean contains(long time) {
+            return time >= hourStart && time < hourEnd && time >= dayStart && time < dayEnd;
+        }
+    }
+
+    // 列式缓冲区：每列一个 long 数组。写盘跟不上时翻倍扩容，不丢记录
+    private static final class Columns {
+        long[] times;
+        long[] productIds;
+        long[] categoryIds;
+        long[] deltas;
+        long[] stocks;
+        int size;
+
+        Columns(int capacity) {
+            times = new long[capacity];
+            productIds = new long[capacity];
+            categoryIds = new long[capacity];
+            deltas = new long[capacity];
+            stocks = new long[capacity];
+        }
+
+        void add(long time, long productId, long categoryId, long delta, long stock) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                productIds = Arrays.copyOf(productIds, capacity);
+                categoryIds = Arrays.copyOf(categoryIds, capacity);
+                deltas = Arrays.copyOf(deltas, capacity);
+                stocks = Arrays.copyOf(stocks, capacity);
+            }
+            times[size] = time;
+            productIds[size] = productId;
+            categoryIds[size] = categoryId;
+            deltas[size] = delta;
+            stocks[size] = stock;
+            size++;
+        }
+    }
+}
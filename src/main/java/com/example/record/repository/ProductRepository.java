@@ -1,48 +1,174 @@
 package com.example.record.repository;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
+import com.example.record.model.BatchStockItem;
 import com.example.record.model.Category;
 import com.example.record.model.Product;
+import com.example.record.model.ProductPage;
+import com.example.record.model.ProductSearchResult;
 import com.example.record.repository.CategoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Repository
 public class ProductRepository {
 
-    private static final String ROOT = "data/products";
-    private final ObjectMapper mapper = new ObjectMapper();
+    private static final Logger log = LoggerFactory.getLogger(ProductRepository.class);
+
+    // 库存锁分段数，必须是 2 的幂
+    private static final int LOCK_STRIPES = 256;
     private final AtomicLong idGen = new AtomicLong(1000);
 
+    // 内存索引：启动时一次性加载，之后读操作不再访问磁盘
+    private final Map<Long, Product> byId = new ConcurrentHashMap<>();
+    // 按 categoryId -> id 有序，findAll / findByCategory 直接按顺序遍历
+    private final ConcurrentSkipListMap<Long, ConcurrentSkipListMap<Long, Product>> byCategory = new ConcurrentSkipListMap<>();
+    // 商品名称的 n-gram 倒排索引，随 index / unindex 增量更新
+    private final ProductSearchIndex searchIndex = new ProductSearchIndex();
+    // 设置了补货阈值的商品，按 (库存 - 阈值, id) 排序，低库存商品排在最前
+    private final ConcurrentSkipListSet<long[]> byMargin = new ConcurrentSkipListSet<>(
+            (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    private final List<LowStockListener> lowStockListeners = new CopyOnWriteArrayList<>();
+
+    // 按商品 id 分段的库存锁：同一商品的检查和扣减串行执行，不同商品互不阻塞
+    private final ReentrantLock[] stockLocks = new ReentrantLock[LOCK_STRIPES];
+
     private final CategoryRepository categoryRepository;
+    private final ImageStore imageStore;
+    private final ChangeLog changeLog;
+    private final MovementHistory movements;
+    private final RepositoryMetrics metrics;
+
+    // 持久化：json（默认，也是 journal 模式的快照格式）或 mmap
+    private final ProductStore store;
 
-    public ProductRepository(CategoryRepository categoryRepository) {
+    // journal 模式：库存变动只追加日志，由后台线程定期把脏商品合并回 JSON 快照
+    private final StockJournal journal;
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    // 库存写入持有读锁，切换日志文件时持有写锁，保证旧日志中的变动都已反映在内存中
+    private final ReentrantReadWriteLock rotateLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * 商品库存越过补货阈值时的通知：low 为 true 表示降到阈值及以下，false 表示回到阈值以上。
+     * 在持有商品锁时回调，不能做耗时操作。
+     */
+    public interface LowStockListener {
+        void crossed(Product product, boolean low);
+    }
+
+    public ProductRepository(CategoryRepository categoryRepository, ImageStore imageStore,
+            @Value("${app.storage.mode:json}") String storageMode,
+            @Value("${app.storage.journal.snapshot-interval-seconds:30}") long snapshotIntervalSeconds,
+            @Value("${app.storage.load-threads:0}") int loadThreads,
+            @Value("${app.storage.data-dir:data}") String dataDir,
+            ChangeLog changeLog,
+            MovementHistory movements,
+            FileWriteLog writeLog,
+            RepositoryMetrics metrics) {
         this.categoryRepository = categoryRepository;
-        new File(ROOT).mkdirs();
-        initId();
-    }
-
-    private void initId() {
-        File root = new File(ROOT);
-        File[] dirs = root.listFiles(File::isDirectory);
-        long max = 0;
-        if (dirs != null) {
-            for (File dir : dirs) {
-                File[] fs = dir.listFiles();
-                if (fs == null)
-                    continue;
-                for (File f : fs) {
-                    try {
-                        max = Math.max(max, Long.parseLong(f.getName().replace(".json", "")));
-                    } catch (Exception ignored) {
-                    }
+        this.imageStore = imageStore;
+        this.changeLog = changeLog;
+        this.movements = movements;
+        this.metrics = metrics;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stockLocks[i] = new ReentrantLock();
+        }
+        String root = dataDir + "/products";
+        JsonProductStore jsonStore = new JsonProductStore(root, new ObjectMapper(), metrics, writeLog,
+                loadThreads);
+        if ("mmap".equalsIgnoreCase(storageMode)) {
+            store = new MmapProductStore(Paths.get(dataDir), jsonStore, new File(root));
+            log.info("商品使用 mmap 存储模式");
+        } else {
+            store = jsonStore;
+        }
+        load();
+
+        if ("journal".equalsIgnoreCase(storageMode)) {
+            journal = new StockJournal(Paths.get(dataDir, "journal"));
+            replayJournal();
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stock-journal-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+            log.info("商品库存使用 journal 存储模式，快照间隔: {}s", snapshotIntervalSeconds);
+        } else {
+            journal = null;
+            compactor = null;
+        }
+
+        rebuildCategoryTotals();
+    }
+
+    // 分类总库存以商品库存为准，启动时重新计算，修正之前写到一半失败造成的偏差
+    private void rebuildCategoryTotals() {
+        Map<Long, Long> stockByCategory = new HashMap<>();
+        for (Map.Entry<Long, ConcurrentSkipListMap<Long, Product>> e : byCategory.entrySet()) {
+            long sum = 0;
+            for (Product p : e.getValue().values()) {
+                sum += p.getStock() != null ? p.getStock() : 0L;
+            }
+            stockByCategory.put(e.getKey(), sum);
+        }
+        categoryRepository.rebuildTotals(stockByCategory);
+    }
+
+    private void load() {
+        List<Product> losers = new ArrayList<>();
+        long maxId = store.loadAll(p -> {
+            if (p.getVersion() == null) {
+                p.setVersion(0L);
+            }
+            Product loaded = byId.get(p.getId());
+            if (loaded != null) {
+                // 换分类时在删除旧文件前崩溃，新旧两份都在，保留版本号大的
+                log.warn("商品 {} 有多份数据，保留版本号较大的: {} / {}", p.getId(), loaded.getVersion(), p.getVersion());
+                if (!ProductStore.isNewerCopy(p, loaded)) {
+                    losers.add(p);
+                    return;
                 }
+                losers.add(loaded);
+            }
+            index(p);
+            // 两份通常共用同一张图片：先增加新的引用再释放旧的，计数不会降到 0
+            imageStore.retain(p.getImagePath());
+            if (loaded != null) {
+                imageStore.release(loaded.getImagePath());
             }
+        });
+        // 删除落选的副本，否则删除商品后它会在下次启动时重新出现
+        for (Product loser : losers) {
+            store.moved(loser);
         }
-        idGen.set(max + 1);
+        idGen.set(maxId + 1);
+        log.info("商品索引加载完成，数量: {}", byId.size());
     }
 
     public Product save(Long categoryId, String name, String imagePath, Long stock) {
@@ -52,247 +178,858 @@ public class ProductRepository {
         p.setName(name);
         p.setImagePath(imagePath); // 保存完整URL或相对路径
         p.setStock(stock);
-        write(p);
-        return p;
+        p.setVersion(1L);
+        store.write(p);
+        index(p);
+        categoryRepository.addTotalCount(categoryId, stock);
+        changeLog.recordProduct(p.getId(), p.getCategoryId());
+        return copyOf(p);
     }
 
     public Product findById(Long pid) {
-        File[] dirs = new File(ROOT).listFiles(File::isDirectory);
-        if (dirs == null)
-            return null;
-        for (File d : dirs) {
-            File f = new File(d, pid + ".json");
-            if (f.exists())
-                try {
-                    return mapper.readValue(f, Product.class);
-                } catch (Exception ignored) {
-                }
-        }
-        return null;
+        Product p = byId.get(pid);
+        return p != null ? copyOf(p) : null;
     }
 
     public List<Product> findByCategory(Long cid) {
         List<Product> list = new ArrayList<>();
-        File dir = new File(ROOT, "category_" + cid);
-        File[] files = dir.listFiles();
-        if (files == null)
+        Map<Long, Product> products = byCategory.get(cid);
+        if (products == null)
             return list;
-        for (File f : files) {
-            try {
-                list.add(mapper.readValue(f, Product.class));
-            } catch (Exception ignored) {
-            }
+        for (Product p : products.values()) {
+            list.add(copyOf(p));
         }
         return list;
     }
 
     public List<Product> findAll() {
-        List<Product> list = new ArrayList<>();
+        List<Product> list = new ArrayList<>(byId.size());
 
-        File root = new File(ROOT);
-        File[] dirs = root.listFiles(File::isDirectory);
-        if (dirs == null)
-            return list;
+        // 索引本身按 categoryId + id 排序，方便前端联动
+        for (Map<Long, Product> products : byCategory.values()) {
+            for (Product p : products.values()) {
+                list.add(copyOf(p));
+            }
+        }
 
-        for (File dir : dirs) {
-            File[] files = dir.listFiles();
-            if (files == null)
-                continue;
+        return list;
+    }
 
-            for (File f : files) {
-                try {
-                    list.add(mapper.readValue(f, Product.class));
-                } catch (Exception ignored) {
+    /**
+     * 按 (categoryId, id) 游标分页，返回排在游标之后的最多 limit 个商品。
+     * 游标为 null 时从头开始。
+     */
+    public ProductPage findPage(Long afterCategoryId, Long afterId, int limit) {
+        List<Product> items = new ArrayList<>(limit);
+        Product last = null;
+        boolean hasMore = false;
+
+        Map<Long, ConcurrentSkipListMap<Long, Product>> categories = afterCategoryId == null
+                ? byCategory
+                : byCategory.tailMap(afterCategoryId, true);
+        outer:
+        for (Map.Entry<Long, ConcurrentSkipListMap<Long, Product>> e : categories.entrySet()) {
+            Map<Long, Product> products = e.getValue();
+            if (afterId != null && e.getKey().equals(afterCategoryId)) {
+                products = e.getValue().tailMap(afterId, false);
+            }
+            for (Product p : products.values()) {
+                if (items.size() == limit) {
+                    hasMore = true;
+                    break outer;
                 }
+                last = copyOf(p);
+                items.add(last);
             }
         }
 
-        // 可选：按 categoryId + id 排序，方便前端联动
-        list.sort((a, b) -> {
-            int c = a.getCategoryId().compareTo(b.getCategoryId());
-            if (c != 0)
-                return c;
-            return a.getId().compareTo(b.getId());
-        });
+        ProductPage page = new ProductPage();
+        page.setItems(items);
+        page.setHasMore(hasMore);
+        if (hasMore) {
+            page.setNextCategoryId(last.getCategoryId());
+            page.setNextId(last.getId());
+        }
+        return page;
+    }
 
-        return list;
+    /**
+     * 按名称搜索，返回按相关度排序的第 offset 个起最多 limit 个商品。
+     */
+    public ProductSearchResult search(String query, int offset, int limit) {
+        long start = System.nanoTime();
+        ProductSearchIndex.Hits hits = searchIndex.search(query, offset, limit);
+        List<Product> items = new ArrayList<>(hits.productIds.length);
+        for (long id : hits.productIds) {
+            // 查询之后被删除的商品直接跳过
+            Product p = byId.get(id);
+            if (p != null) {
+                items.add(copyOf(p));
+            }
+        }
+
+        ProductSearchResult result = new ProductSearchResult();
+        result.setItems(items);
+        result.setTotal(hits.total);
+        result.setHasMore((long) offset + hits.productIds.length < hits.total);
+        RepositoryMetrics.record(metrics.productSearch, start);
+        return result;
     }
 
-    public void update(Product p) {
-        write(p);
+    /**
+     * 按 categoryId + id 顺序逐个回调，不构建完整列表，用于流式输出。
+     */
+    public void forEach(Consumer<Product> action) {
+        for (Map<Long, Product> products : byCategory.values()) {
+            for (Product p : products.values()) {
+                action.accept(copyOf(p));
+            }
+        }
     }
 
-    private void write(Product p) {
-        File dir = new File(ROOT, "category_" + p.getCategoryId());
-        dir.mkdirs();
+    /**
+     * 按 categoryId + id 顺序惰性遍历，消费方取一个才复制一个，用于按需拉取的响应式输出。
+     */
+    public Stream<Product> stream() {
+        return byCategory.values().stream().flatMap(products -> products.values().stream()).map(this::copyOf);
+    }
+
+    public void addLowStockListener(LowStockListener listener) {
+        lowStockListeners.add(listener);
+    }
+
+    /**
+     * 设置补货阈值，level 为 null 时取消。商品不存在时返回 null。
+     */
+    public Product setReorderLevel(Long productId, Long level) {
+        ReentrantLock lock = lockFor(productId);
+        lock.lock();
         try {
-            mapper.writeValue(new File(dir, p.getId() + ".json"), p);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            Product stored = byId.get(productId);
+            if (stored == null) {
+                return null;
+            }
+            Product updated = copyOf(stored);
+            updated.setReorderLevel(level);
+            updated.setVersion(nextVersion(stored));
+            store.write(updated);
+            index(updated);
+            changeLog.recordProduct(updated.getId(), updated.getCategoryId());
+            return copyOf(updated);
+        } finally {
+            lock.unlock();
         }
     }
 
-    public boolean delete(Long id) {
+    /**
+     * 库存 - 补货阈值不大于 margin 的商品，缺口最大的在前，最多 limit 个。
+     * margin 为 0 时即低库存商品，正数可以提前查出接近阈值的商品。只遍历结果本身，与商品总数无关。
+     */
+    public List<Product> findLowStock(long margin, int limit) {
+        List<Product> list = new ArrayList<>(Math.min(limit, 64));
+        for (long[] key : byMargin.headSet(new long[] { margin, Long.MAX_VALUE }, true)) {
+            if (list.size() == limit) {
+                break;
+            }
+            Product p = byId.get(key[1]);
+            if (p != null) {
+                list.add(copyOf(p));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 无条件更新，见 {@link #update(Product, Long)}。
+     */
+    public void update(Product p) {
+        update(p, null);
+    }
+
+    /**
+     * 更新名称、分类、图片和补货阈值，版本号在当前版本上加 1。
+     * expectedVersion 不为 null 且与当前版本不一致时不写入，返回 CONFLICT 和当前商品。
+     * 库存以当前值为准，传入的 stock 被忽略，库存只通过 changeStock / setStock 修改，不会被旧数据覆盖。
+     * imagePath 变化时释放旧图片的引用，新图片的引用由调用方（ImageStore.save）带入。
+     */
+    public UpdateResult<Product> update(Product p, Long expectedVersion) {
+        ReentrantLock lock = lockFor(p.getId());
+        lock.lock();
         try {
-            Product product = findById(id);
-            if (product == null) {
-                return false;
+            Product old = byId.get(p.getId());
+            if (old == null) {
+                return UpdateResult.notFound();
             }
+            if (expectedVersion != null && !expectedVersion.equals(old.getVersion())) {
+                return UpdateResult.conflict(copyOf(old));
+            }
+            Product updated = copyOf(p);
+            updated.setStock(old.getStock());
+            updated.setVersion(nextVersion(old));
+            store.write(updated);
+            index(updated);
+            if (!old.getCategoryId().equals(updated.getCategoryId())) {
+                store.moved(old);
+                // 换了分类，原分类的列表和两个分类的总库存都变了
+                changeLog.recordProduct(updated.getId(), old.getCategoryId());
+                categoryRepository.addTotalCount(old.getCategoryId(), -old.getStock());
+                categoryRepository.addTotalCount(updated.getCategoryId(), updated.getStock());
+            }
+            changeLog.recordProduct(updated.getId(), updated.getCategoryId());
+            if (!Objects.equals(old.getImagePath(), updated.getImagePath())) {
+                imageStore.release(old.getImagePath());
+            }
+            return UpdateResult.ok(copyOf(updated));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // 1. 删除JSON文件
-            deleteProductJsonFile(product);
+    public StockChange changeStock(Long productId, long delta) {
+        return changeStock(productId, delta, null);
+    }
 
-            // 2. 删除图片
-            deleteProductImage(product);
+    /**
+     * 入库（delta > 0）或出库（delta < 0）。库存检查、扣减、持久化和分类总库存更新
+     * 在同一把商品锁内完成，并发出库不会超卖。
+     * expectedVersion 不为 null 时先比较版本号，不一致返回 CONFLICT。
+     */
+    public StockChange changeStock(Long productId, long delta, Long expectedVersion) {
+        ReentrantLock lock = lockFor(productId);
+        lock.lock();
+        try {
+            Product stored = byId.get(productId);
+            if (stored == null) {
+                return StockChange.notFound();
+            }
+            if (expectedVersion != null && !expectedVersion.equals(stored.getVersion())) {
+                return StockChange.conflict(copyOf(stored));
+            }
+            long oldStock = stored.getStock();
+            if (oldStock + delta < 0) {
+                metrics.stockRejected.increment();
+                return StockChange.insufficient(copyOf(stored));
+            }
+            (delta >= 0 ? metrics.stockIn : metrics.stockOut).increment();
+            return applyStock(stored, oldStock + delta);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // 3. 更新分类库存
-            updateCategoryStockAfterDelete(product);
+    /**
+     * changeStock 的异步版本，返回时不等待持久化完成。
+     * journal 模式下在商品锁内追加日志并更新内存，future 在日志 fsync 后完成，调用线程不等待 fsync；
+     * 其它模式没有需要等待的 fsync，同步执行后返回已完成的 future。
+     * 与 mmap 模式一样，变动在落盘前即对读取方可见。expectedVersion 的含义同 changeStock。
+     * 日志已经写入失败（之后的追加都会失败）时不修改内存，返回以该异常完成的 future。
+     * 这条记录的 fsync 失败时，在商品锁内按相反的变动回滚内存（版本号继续递增），回滚完成后 future 以该异常完成，
+     * 内存与同步的 changeStock 失败时一致；流水只在 fsync 成功后记录。
+     */
+    public CompletableFuture<StockChange> changeStockAsync(Long productId, long delta, Long expectedVersion) {
+        if (journal == null || delta == 0) {
+            return CompletableFuture.completedFuture(changeStock(productId, delta, expectedVersion));
+        }
+        ReentrantLock lock = lockFor(productId);
+        lock.lock();
+        try {
+            Product stored = byId.get(productId);
+            if (stored == null) {
+                return CompletableFuture.completedFuture(StockChange.notFound());
+            }
+            if (expectedVersion != null && !expectedVersion.equals(stored.getVersion())) {
+                return CompletableFuture.completedFuture(StockChange.conflict(copyOf(stored)));
+            }
+            long oldStock = stored.getStock();
+            if (oldStock + delta < 0) {
+                metrics.stockRejected.increment();
+                return CompletableFuture.completedFuture(StockChange.insufficient(copyOf(stored)));
+            }
 
-            return true;
+            Product updated = copyOf(stored);
+            updated.setStock(oldStock + delta);
+            updated.setVersion(nextVersion(stored));
+            CompletableFuture<Void> synced;
+            rotateLock.readLock().lock();
+            try {
+                long start = System.nanoTime();
+                synced = journal.appendAsync(updated.getId(), delta, updated.getStock());
+                if (synced.isCompletedExceptionally()) {
+                    // 日志之前已写入失败，这条记录不会落盘：与同步的 changeStock 一样不修改内存，直接返回失败
+                    return synced.thenApply(v -> StockChange.ok(updated, oldStock));
+                }
+                synced.whenComplete((v, e) -> RepositoryMetrics.record(metrics.journalAppend, start));
+                dirty.add(updated.getId());
+                index(updated);
+                changeLog.recordProduct(updated.getId(), updated.getCategoryId());
+            } finally {
+                rotateLock.readLock().unlock();
+            }
+            categoryRepository.addTotalCount(updated.getCategoryId(), delta);
 
-        } catch (Exception e) {
-            System.err.println("删除商品失败: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+            CompletableFuture<StockChange> result = new CompletableFuture<>();
+            synced.whenComplete((v, e) -> {
+                if (e == null) {
+                    (delta >= 0 ? metrics.stockIn : metrics.stockOut).increment();
+                    movements.record(updated.getId(), updated.getCategoryId(), delta, updated.getStock());
+                    result.complete(StockChange.ok(updated, oldStock));
+                    return;
+                }
+                // 回滚要拿商品锁，不能在日志的后台线程上等：持有该锁的同步 changeStock 可能正等着这个线程完成 fsync
+                CompletableFuture.runAsync(() -> revertStock(updated.getId(), delta))
+                        .whenComplete((x, re) -> result.completeExceptionally(e));
+            });
+            return result;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void deleteProductJsonFile(Product product) {
-        // 找到对应的JSON文件
-        File dir = new File(ROOT, "category_" + product.getCategoryId());
-        File jsonFile = new File(dir, product.getId() + ".json");
+    // changeStockAsync 的日志记录 fsync 失败：按相反的变动修改当前库存，作为一次新的变动通知读取方
+    private void revertStock(long productId, long delta) {
+        ReentrantLock lock = lockFor(productId);
+        lock.lock();
+        try {
+            Product stored = byId.get(productId);
+            if (stored == null) {
+                return;
+            }
+            Product reverted = copyOf(stored);
+            reverted.setStock(stored.getStock() - delta);
+            reverted.setVersion(nextVersion(stored));
+            rotateLock.readLock().lock();
+            try {
+                dirty.add(reverted.getId());
+                index(reverted);
+                changeLog.recordProduct(reverted.getId(), reverted.getCategoryId());
+            } finally {
+                rotateLock.readLock().unlock();
+            }
+            categoryRepository.addTotalCount(reverted.getCategoryId(), -delta);
+            log.warn("库存日志写入失败，已回滚商品 {} 的库存变动 {}", productId, delta);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (jsonFile.exists()) {
-            boolean jsonDeleted = jsonFile.delete();
-            System.out.println("删除商品JSON文件: " + jsonFile.getPath() + ", 结果: " + jsonDeleted);
+    public StockChange setStock(Long productId, long newStock) {
+        return setStock(productId, newStock, null);
+    }
 
-            // 如果目录为空，删除目录
-            if (dir.exists() && dir.isDirectory() && dir.listFiles().length == 0) {
-                boolean dirDeleted = dir.delete();
-                System.out.println("删除空商品目录: " + dir.getPath() + ", 结果: " + dirDeleted);
+    /**
+     * 直接设置库存，分类总库存按差值调整。expectedVersion 不为 null 且与当前版本不一致时返回 CONFLICT。
+     */
+    public StockChange setStock(Long productId, long newStock, Long expectedVersion) {
+        ReentrantLock lock = lockFor(productId);
+        lock.lock();
+        try {
+            Product stored = byId.get(productId);
+            if (stored == null) {
+                return StockChange.notFound();
+            }
+            if (expectedVersion != null && !expectedVersion.equals(stored.getVersion())) {
+                return StockChange.conflict(copyOf(stored));
             }
+            metrics.stockSet.increment();
+            return applyStock(stored, newStock);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void deleteProductImage(Product product) {
-        if (product.getImagePath() != null && !product.getImagePath().isEmpty()) {
-            try {
-                String imagePath = product.getImagePath();
-
-                // 从URL或路径中提取本地文件路径
-                if (imagePath.startsWith("http")) {
-                    // 从URL中提取文件名
-                    String[] parts = imagePath.split("/uploads/");
-                    if (parts.length > 1) {
-                        String relativePath = parts[1];
-                        String projectRoot = System.getProperty("user.dir");
-                        String fullPath = projectRoot + File.separator + "uploads" + File.separator + relativePath;
-                        deleteImageFile(fullPath);
+    /**
+     * 批量入库/出库/设置库存。按顺序逐行校验并计算，每行独立成功或失败；
+     * 全部行处理完后每个涉及的商品只持久化一次（全部提交后一起等待），每个分类的总库存只更新一次。
+     * 某个商品写入失败时，该商品的行返回 WRITE_FAILED，分类总库存和流水只计入写入成功的商品。
+     * 行中带有 version 时与该商品在本批次中的当前版本比较（前面的行会使版本递增），不一致时该行失败。
+     * 返回结果与 items 一一对应。
+     */
+    public List<StockChange> applyBatch(List<BatchStockItem> items) {
+        List<ReentrantLock> locks = locksFor(items);
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            List<StockChange> results = new ArrayList<>(items.size());
+            // 本批次中商品的最新库存（尚未持久化）
+            Map<Long, Product> working = new LinkedHashMap<>();
+            Map<Long, Long> oldStocks = new HashMap<>();
+            Map<Long, Long> oldVersions = new HashMap<>();
+
+            for (BatchStockItem item : items) {
+                Long pid = item.getProductId();
+                Long count = item.getCount();
+                String op = item.getOp();
+                if (pid == null || count == null || op == null) {
+                    results.add(StockChange.invalid());
+                    continue;
+                }
+
+                Product current = working.get(pid);
+                if (current == null) {
+                    Product stored = byId.get(pid);
+                    if (stored == null) {
+                        results.add(StockChange.notFound());
+                        continue;
                     }
-                } else if (imagePath.startsWith("/uploads/")) {
-                    // 相对路径
-                    String projectRoot = System.getProperty("user.dir");
-                    String fullPath = projectRoot + imagePath.replace("/", File.separator);
-                    deleteImageFile(fullPath);
+                    current = copyOf(stored);
+                    working.put(pid, current);
+                    oldStocks.put(pid, current.getStock());
+                    oldVersions.put(pid, current.getVersion());
+                }
+                if (item.getVersion() != null && !item.getVersion().equals(current.getVersion())) {
+                    results.add(StockChange.conflict(copyOf(current)));
+                    continue;
+                }
+
+                long oldStock = current.getStock();
+                long newStock;
+                switch (op) {
+                    case "in":
+                        if (count <= 0) {
+                            results.add(StockChange.invalid());
+                            continue;
+                        }
+                        newStock = oldStock + count;
+                        break;
+                    case "out":
+                        if (count <= 0) {
+                            results.add(StockChange.invalid());
+                            continue;
+                        }
+                        newStock = oldStock - count;
+                        break;
+                    case "set":
+                        if (count < 0) {
+                            results.add(StockChange.invalid());
+                            continue;
+                        }
+                        newStock = count;
+                        break;
+                    default:
+                        results.add(StockChange.invalid());
+                        continue;
+                }
+                if (newStock < 0) {
+                    metrics.stockRejected.increment();
+                    results.add(StockChange.insufficient(copyOf(current)));
+                    continue;
+                }
+
+                if (newStock != oldStock) {
+                    current.setStock(newStock);
+                    current.setVersion(nextVersion(current));
+                }
+                countMovement(op);
+                results.add(StockChange.ok(copyOf(current), oldStock));
+            }
+
+            // 每个商品只写一次；先入后出等净变动为 0 的也要持久化，版本号已经递增
+            List<Product> changed = new ArrayList<>(working.size());
+            for (Product p : working.values()) {
+                if (!p.getVersion().equals(oldVersions.get(p.getId()))) {
+                    changed.add(p);
+                }
+            }
+            Set<Long> failed = persistStocks(changed, oldStocks);
+
+            // 每个分类只更新一次，只计入写入成功的商品
+            Map<Long, Long> categoryDeltas = new HashMap<>();
+            for (Product p : changed) {
+                long delta = p.getStock() - oldStocks.get(p.getId());
+                if (delta != 0 && !failed.contains(p.getId())) {
+                    categoryDeltas.merge(p.getCategoryId(), delta, Long::sum);
+                }
+            }
+            categoryDeltas.forEach((cid, delta) -> {
+                if (delta != 0) {
+                    categoryRepository.addTotalCount(cid, delta);
+                }
+            });
+
+            // 流水按行记录，同一商品的多行不合并；写入失败的商品的行改为失败，返回未修改的当前商品
+            for (int i = 0; i < results.size(); i++) {
+                StockChange r = results.get(i);
+                if (!r.isOk()) {
+                    continue;
+                }
+                Product p = r.getProduct();
+                if (failed.contains(p.getId())) {
+                    results.set(i, StockChange.writeFailed(copyOf(byId.get(p.getId()))));
                 } else {
-                    // 直接路径
-                    deleteImageFile(imagePath);
+                    movements.record(p.getId(), p.getCategoryId(), p.getStock() - r.getOldStock(), p.getStock());
                 }
-            } catch (Exception e) {
-                System.err.println("删除商品图片失败: " + e.getMessage());
+            }
+
+            return results;
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
             }
         }
     }
 
-    private void updateCategoryStockAfterDelete(Product product) {
-        try {
-            Category category = categoryRepository.findById(product.getCategoryId());
-            if (category != null) {
-                Long oldTotal = category.getTotalCount() != null ? category.getTotalCount() : 0L;
+    private void countMovement(String op) {
+        if ("in".equals(op)) {
+            metrics.stockIn.increment();
+        } else if ("out".equals(op)) {
+            metrics.stockOut.increment();
+        } else {
+            metrics.stockSet.increment();
+        }
+    }
+
+    // 按分段下标排序后加锁，避免两个批次互相等待
+    private List<ReentrantLock> locksFor(List<BatchStockItem> items) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (BatchStockItem item : items) {
+            if (item.getProductId() != null) {
+                stripes.add(stripeOf(item.getProductId()));
+            }
+        }
+        List<ReentrantLock> locks = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            locks.add(stockLocks[stripe]);
+        }
+        return locks;
+    }
+
+    // 调用方必须持有该商品的库存锁
+    private StockChange applyStock(Product stored, long newStock) {
+        long oldStock = stored.getStock();
+        long delta = newStock - oldStock;
+        Product updated = copyOf(stored);
+        updated.setStock(newStock);
+        if (delta != 0) {
+            updated.setVersion(nextVersion(stored));
+            persistStock(updated, delta);
+            categoryRepository.addTotalCount(updated.getCategoryId(), delta);
+            movements.record(updated.getId(), updated.getCategoryId(), delta, newStock);
+        }
+        return StockChange.ok(updated, oldStock);
+    }
 
-                Long newTotal = oldTotal - product.getStock();
+    /**
+     * 只修改了库存的持久化。journal 模式下追加一条库存日志代替重写整个 JSON 文件，
+     * mmap 模式下只改写记录中的库存字段。
+     */
+    private void persistStock(Product p, long delta) {
+        if (journal == null) {
+            store.writeStock(p);
+            index(p);
+            changeLog.recordProduct(p.getId(), p.getCategoryId());
+            return;
+        }
+
+        rotateLock.readLock().lock();
+        try {
+            long start = System.nanoTime();
+            journal.append(p.getId(), delta, p.getStock());
+            RepositoryMetrics.record(metrics.journalAppend, start);
+            dirty.add(p.getId());
+            index(p);
+            changeLog.recordProduct(p.getId(), p.getCategoryId());
+        } finally {
+            rotateLock.readLock().unlock();
+        }
+    }
 
-                if (newTotal < 0) {
-                    newTotal = 0L; // 防止负数
+    /**
+     * 批量持久化只修改了库存的商品：全部提交后再一起等待，共用一次 fsync；
+     * 写入成功的商品才更新内存索引。返回写入失败的商品 id。调用方必须持有这些商品的库存锁。
+     */
+    private Set<Long> persistStocks(List<Product> products, Map<Long, Long> oldStocks) {
+        Set<Long> failed = new HashSet<>();
+        if (products.isEmpty()) {
+            return failed;
+        }
+        // journal 模式下读锁一直持有到更新完内存，切换日志时旧日志中的变动都已反映在内存中
+        if (journal != null) {
+            rotateLock.readLock().lock();
+        }
+        try {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> writes = new ArrayList<>(products.size());
+            for (Product p : products) {
+                writes.add(journal != null
+                        ? journal.appendAsync(p.getId(), p.getStock() - oldStocks.get(p.getId()), p.getStock())
+                        : store.writeStockAsync(p));
+            }
+            for (int i = 0; i < products.size(); i++) {
+                Product p = products.get(i);
+                try {
+                    writes.get(i).join();
+                } catch (CompletionException e) {
+                    log.warn("批量库存写入失败，商品: {}, {}", p.getId(), e.getCause().getMessage());
+                    failed.add(p.getId());
+                    continue;
+                }
+                if (journal != null) {
+                    RepositoryMetrics.record(metrics.journalAppend, start);
+                    dirty.add(p.getId());
                 }
+                index(p);
+                changeLog.recordProduct(p.getId(), p.getCategoryId());
+            }
+        } finally {
+            if (journal != null) {
+                rotateLock.readLock().unlock();
+            }
+        }
+        return failed;
+    }
 
-                category.setTotalCount(newTotal);
-                categoryRepository.update(category);
+    private ReentrantLock lockFor(Long productId) {
+        return stockLocks[stripeOf(productId)];
+    }
 
-                System.out.println("分类库存更新: " + oldTotal + " -> " + newTotal);
-            } else {
-                System.out.println("未找到分类，无法更新库存");
+    private int stripeOf(Long productId) {
+        long id = productId;
+        return (int) (id ^ (id >>> 32)) & (LOCK_STRIPES - 1);
+    }
+
+    private void replayJournal() {
+        List<long[]> records = journal.readAll();
+        for (long[] r : records) {
+            Product stored = byId.get(r[0]);
+            if (stored != null) {
+                // 记录中带有变动后的库存，重放是幂等的。版本号每条记录加 1：
+                // 快照可能已包含切换日志之后的变动，版本号会比崩溃前偏大，但不会回退，不会让过期的 If-Match 通过
+                // 与正常写入一样在副本上修改再 index，低库存索引按新库存移动
+                Product updated = copyOf(stored);
+                updated.setStock(r[2]);
+                updated.setVersion(nextVersion(stored));
+                index(updated);
+                dirty.add(updated.getId());
             }
-        } catch (Exception e) {
-            System.err.println("更新分类库存失败: " + e.getMessage());
         }
+        if (!records.isEmpty()) {
+            log.info("重放库存日志记录数: {}", records.size());
+        }
+        // 启动时总是切换一次日志，清理上次运行留下的旧文件
+        compactNow();
     }
 
-    public void deleteAll() {
+    /**
+     * 把脏商品写回 data/products 下的 JSON 文件，然后删除已被快照覆盖的旧日志。
+     */
+    public void compact() {
+        if (journal == null || dirty.isEmpty()) {
+            return;
+        }
+        compactNow();
+    }
+
+    private void compactNow() {
+        List<Path> obsolete;
+        rotateLock.writeLock().lock();
         try {
-            // 获取所有商品
-            List<Product> products = findAll();
+            obsolete = journal.rotate();
+        } finally {
+            rotateLock.writeLock().unlock();
+        }
 
-            // 删除每个商品的图片
-            for (Product product : products) {
-                deleteProductImage(product);
+        int written = 0;
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Long id : new ArrayList<>(dirty)) {
+            dirty.remove(id);
+            // 在 computeIfPresent 中提交写入，避免与并发删除交错导致已删除的商品被写回
+            if (byId.computeIfPresent(id, (k, v) -> {
+                writes.add(store.writeAsync(v));
+                return v;
+            }) != null) {
+                written++;
             }
+        }
+        // 所有商品文件共用一次日志 fsync，落盘后才能删除旧日志
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
 
-            // 删除所有商品目录
-            File rootDir = new File(ROOT);
-            if (rootDir.exists() && rootDir.isDirectory()) {
-                File[] categoryDirs = rootDir.listFiles(File::isDirectory);
-                if (categoryDirs != null) {
-                    for (File categoryDir : categoryDirs) {
-                        deleteDirectory(categoryDir);
-                    }
-                }
+        for (Path file : obsolete) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (Exception e) {
+                log.warn("删除旧库存日志失败: {}, {}", file, e.getMessage());
             }
+        }
+        if (written > 0) {
+            log.info("库存快照合并完成，写入商品数: {}", written);
+        }
+    }
 
-            // 重置ID生成器
-            idGen.set(1000);
-            System.out.println("已删除所有商品和图片");
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.warn("库存快照合并失败: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (journal != null) {
+            compactor.shutdown();
+            compactQuietly();
+            journal.close();
+        }
+        store.close();
+    }
+
+    private void index(Product p) {
+        Product stored = copyOf(p);
+        Product old = byId.put(stored.getId(), stored);
+        if (old != null && !old.getCategoryId().equals(stored.getCategoryId())) {
+            unindexFromCategory(old);
+        }
+        // 库存变动也会走到这里，只有新增和改名才需要更新搜索索引
+        if (old == null || !Objects.equals(old.getName(), stored.getName())) {
+            searchIndex.put(stored.getId(), stored.getName());
+        }
+        indexMargin(old, stored);
+        byCategory.computeIfAbsent(stored.getCategoryId(), k -> new ConcurrentSkipListMap<>())
+                .put(stored.getId(), stored);
+    }
+
+    private void unindex(Product p) {
+        Product old = byId.remove(p.getId());
+        if (old != null) {
+            unindexFromCategory(old);
+            searchIndex.remove(old.getId());
+            if (old.getReorderLevel() != null) {
+                byMargin.remove(new long[] { margin(old), old.getId() });
+            }
+        }
+    }
+
+    // 库存或阈值变化时移动该商品在 byMargin 中的位置，越过阈值时通知监听器
+    private void indexMargin(Product old, Product stored) {
+        Long oldMargin = old != null && old.getReorderLevel() != null ? margin(old) : null;
+        Long newMargin = stored.getReorderLevel() != null ? margin(stored) : null;
+        if (Objects.equals(oldMargin, newMargin)) {
+            return;
+        }
+        if (oldMargin != null) {
+            byMargin.remove(new long[] { oldMargin, stored.getId() });
+        }
+        if (newMargin != null) {
+            byMargin.add(new long[] { newMargin, stored.getId() });
+        }
+        boolean wasLow = oldMargin != null && oldMargin <= 0;
+        boolean low = newMargin != null && newMargin <= 0;
+        if (wasLow != low) {
+            for (LowStockListener listener : lowStockListeners) {
+                listener.crossed(copyOf(stored), low);
+            }
+        }
+    }
+
+    private static long margin(Product p) {
+        return (p.getStock() != null ? p.getStock() : 0L) - p.getReorderLevel();
+    }
+
+    private void unindexFromCategory(Product p) {
+        Map<Long, Product> products = byCategory.get(p.getCategoryId());
+        if (products != null) {
+            products.remove(p.getId());
+        }
+    }
+
+    // 索引中的对象不直接交给调用方，避免控制器改写 imagePath 等字段污染缓存
+    private Product copyOf(Product src) {
+        Product p = new Product();
+        p.setId(src.getId());
+        p.setCategoryId(src.getCategoryId());
+        p.setName(src.getName());
+        p.setImagePath(src.getImagePath());
+        p.setStock(src.getStock());
+        p.setReorderLevel(src.getReorderLevel());
+        p.setVersion(src.getVersion());
+        return p;
+    }
+
+    private static long nextVersion(Product p) {
+        return (p.getVersion() != null ? p.getVersion() : 0L) + 1;
+    }
+
+    public boolean delete(Long id) {
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            Product product = findById(id);
+            if (product == null) {
+                return false;
+            }
+
+            // 1. 先移出索引，再删除存储中的记录
+            unindex(product);
+            store.delete(product);
+            changeLog.recordProduct(id, product.getCategoryId());
+
+            // 2. 释放图片引用，没有其他分类/商品使用时删除文件
+            imageStore.release(product.getImagePath());
+
+            // 3. 更新分类库存
+            updateCategoryStockAfterDelete(product);
+
+            return true;
 
         } catch (Exception e) {
-            System.err.println("删除所有商品失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("删除商品失败", e);
+            return false;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void deleteDirectory(File dir) {
-        if (dir.exists() && dir.isDirectory()) {
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        deleteDirectory(file);
-                    } else {
-                        file.delete();
-                    }
-                }
+    private void updateCategoryStockAfterDelete(Product product) {
+        try {
+            Category category = categoryRepository.addTotalCount(product.getCategoryId(), -product.getStock());
+            if (category != null) {
+                log.debug("分类库存更新为: {}", category.getTotalCount());
+            } else {
+                log.debug("未找到分类，无法更新库存");
             }
-            dir.delete();
+        } catch (Exception e) {
+            log.warn("更新分类库存失败: {}", e.getMessage());
         }
     }
 
-    private void deleteImageFile(String filePath) {
+    public void deleteAll() {
         try {
-            File imageFile = new File(filePath);
-            if (imageFile.exists()) {
-                boolean deleted = imageFile.delete();
-                System.out.println("删除图片文件: " + filePath + ", 结果: " + deleted);
-
-                // 尝试删除可能存在的空目录
-                File parentDir = imageFile.getParentFile();
-                if (parentDir != null && parentDir.isDirectory() && parentDir.listFiles().length == 0) {
-                    boolean dirDeleted = parentDir.delete();
-                    System.out.println("删除空目录: " + parentDir.getPath() + ", 结果: " + dirDeleted);
+            // 获取所有商品
+            List<Product> products = findAll();
+
+            // 释放每个商品的图片引用
+            for (Product product : products) {
+                imageStore.release(product.getImagePath());
+            }
+
+            // 持有写锁，期间没有库存日志追加；日志也要清空，否则重启时旧记录会重放到重新使用这些 id 的新商品上
+            rotateLock.writeLock().lock();
+            try {
+                if (journal != null) {
+                    journal.clear();
                 }
-            } else {
-                System.out.println("图片文件不存在: " + filePath);
+
+                // 删除所有商品数据
+                store.deleteAll();
+
+                // 重置索引和ID生成器
+                byId.clear();
+                byCategory.clear();
+                searchIndex.clear();
+                byMargin.clear();
+                dirty.clear();
+                idGen.set(1000);
+            } finally {
+                rotateLock.writeLock().unlock();
             }
+            categoryRepository.resetTotals();
+            movements.reset();
+            changeLog.reset();
+            log.info("已删除所有商品和图片");
+
         } catch (Exception e) {
-            System.err.println("删除文件异常: " + e.getMessage());
+            log.error("删除所有商品失败", e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,261 @@
+package com.example.record.repository;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 商品名称的内存倒排索引，按字符 n-gram 切分，中文名称不需要分词。
+ * <p>
+ * 名称先做 NFKC 规范化（全角转半角）、转小写并去掉空白，再切成单字和相邻两字，
+ * 每个 gram 对应一个按文档号升序的 int 数组。文档号只增不减：商品改名时旧文档作废、分配新文档号，
+ * 所以新增总是追加到数组末尾；作废的文档多于有效文档时整体重建一次。
+ * <p>
+ * 查询串只有一个字时按单字查找，否则按相邻两字查找。排序规则：
+ * 名称包含完整查询串的在前（以查询串开头的更靠前），其次按命中的 gram 数，再按名称长度，最后按加入顺序。
+ * 查询超过 2 个 gram 时允许少命中三分之一，容忍错字。
+ */
+class ProductSearchIndex {
+
+    /**
+     * 一次查询的结果：符合条件的总数和当前页的商品 id（按排名）。
+     */
+    static class Hits {
+        final int total;
+        final long[] productIds;
+
+        Hits(int total, long[] productIds) {
+            this.total = total;
+            this.productIds = productIds;
+        }
+    }
+
+    // 单字的 key：低 16 位用 U+FFFF（非字符），不会与两字组合冲突
+    private static final int UNIGRAM = 0xFFFF;
+    private static final int MIN_REBUILD = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Postings> postings = new HashMap<>();
+    private final Map<Long, Integer> docOf = new HashMap<>();
+    // 文档号 -> 商品 id / 规范化后的名称，名称为 null 表示已作废
+    private long[] productIds = new long[1024];
+    private String[] names = new String[1024];
+    private int docCount;
+    private int dead;
+
+    /**
+     * 新增或改名。名称没变时什么也不做。
+     */
+    void put(long productId, String name) {
+        String normalized = normalize(name);
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.get(productId);
+            if (doc != null) {
+                if (normalized.equals(names[doc])) {
+                    return;
+                }
+                kill(doc);
+            }
+            add(productId, normalized);
+            maybeRebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(long productId) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.remove(productId);
+            if (doc != null) {
+                kill(doc);
+                maybeRebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            docOf.clear();
+            productIds = new long[1024];
+            names = new String[1024];
+            docCount = 0;
+            dead = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 返回排名在 [offset, offset + limit) 内的商品 id 和符合条件的总数。
+     */
+    Hits search(String query, int offset, int limit) {
+        String q = normalize(query);
+        int[] grams = queryGrams(q);
+        if (grams.length == 0) {
+            return new Hits(0, new long[0]);
+        }
+        int minMatch = grams.length <= 2 ? grams.length : grams.length - grams.length / 3;
+
+        lock.readLock().lock();
+        try {
+            // 只统计被命中过的文档，按命中的文档数分配，不随全部文档数增长
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (int gram : grams) {
+                Postings list = postings.get(gram);
+                if (list == null) {
+                    continue;
+                }
+                for (int i = 0; i < list.size; i++) {
+                    counts.merge(list.docs[i], 1, Integer::sum);
+                }
+            }
+
+            // 只保留前 offset + limit 名，堆顶是其中排名最低的；用 long 计算，offset 很大时不会溢出
+            long keep = (long) offset + limit;
+            PriorityQueue<Long> top = new PriorityQueue<>((int) Math.min(keep, 1024) + 1);
+            int total = 0;
+            for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+                int doc = e.getKey();
+                String name = names[doc];
+                if (name == null || e.getValue() < minMatch) {
+                    continue;
+                }
+                total++;
+                long key = rankKey(doc, name, q, e.getValue());
+                if (top.size() < keep) {
+                    top.add(key);
+                } else if (keep > 0 && key > top.peek()) {
+                    top.poll();
+                    top.add(key);
+                }
+            }
+
+            long[] ranked = new long[top.size()];
+            for (int i = ranked.length - 1; i >= 0; i--) {
+                ranked[i] = top.poll();
+            }
+            int from = (int) Math.min(offset, ranked.length);
+            long[] page = new long[ranked.length - from];
+            for (int i = 0; i < page.length; i++) {
+                page[i] = productIds[docOfKey(ranked[from + i])];
+            }
+            return new Hits(total, page);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 排名越高 key 越大：包含查询串(2 位) | 命中 gram 数(10 位) | 名称越短越大(12 位) | 文档号越小越大(31 位)
+    private static long rankKey(int doc, String name, String q, int matched) {
+        long tier = name.startsWith(q) ? 2 : name.contains(q) ? 1 : 0;
+        long shortness = 4095 - Math.min(name.length(), 4095);
+        return tier << 53 | (long) Math.min(matched, 1023) << 43 | shortness << 31 | (Integer.MAX_VALUE - doc);
+    }
+
+    private static int docOfKey(long key) {
+        return Integer.MAX_VALUE - (int) (key & Integer.MAX_VALUE);
+    }
+
+    // 调用方持有写锁
+    private void add(long productId, String normalized) {
+        int doc = docCount++;
+        if (doc == names.length) {
+            names = Arrays.copyOf(names, doc * 2);
+            productIds = Arrays.copyOf(productIds, doc * 2);
+        }
+        names[doc] = normalized;
+        productIds[doc] = productId;
+        docOf.put(productId, doc);
+        for (int gram : grams(normalized)) {
+            postings.computeIfAbsent(gram, k -> new Postings()).add(doc);
+        }
+    }
+
+    // 只把名称置空，倒排表中的旧文档号留到重建时再清理
+    private void kill(int doc) {
+        names[doc] = null;
+        dead++;
+    }
+
+    private void maybeRebuild() {
+        if (dead < MIN_REBUILD || dead < docCount - dead) {
+            return;
+        }
+        long[] oldIds = productIds;
+        String[] oldNames = names;
+        int oldCount = docCount;
+        postings.clear();
+        docOf.clear();
+        productIds = new long[Math.max(1024, oldCount - dead)];
+        names = new String[productIds.length];
+        docCount = 0;
+        dead = 0;
+        for (int doc = 0; doc < oldCount; doc++) {
+            if (oldNames[doc] != null) {
+                add(oldIds[doc], oldNames[doc]);
+            }
+        }
+    }
+
+    static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        String s = Normalizer.normalize(name, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // 索引时单字和两字都收录，同一名称中重复的 gram 只算一次
+    private static Set<Integer> grams(String s) {
+        Set<Integer> grams = new LinkedHashSet<>();
+        for (int i = 0; i < s.length(); i++) {
+            grams.add(s.charAt(i) << 16 | UNIGRAM);
+            if (i + 1 < s.length()) {
+                grams.add(s.charAt(i) << 16 | s.charAt(i + 1));
+            }
+        }
+        return grams;
+    }
+
+    private static int[] queryGrams(String q) {
+        if (q.length() == 1) {
+            return new int[] { q.charAt(0) << 16 | UNIGRAM };
+        }
+        Set<Integer> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < q.length(); i++) {
+            grams.add(q.charAt(i) << 16 | q.charAt(i + 1));
+        }
+        return grams.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+}
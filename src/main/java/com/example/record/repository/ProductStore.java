@@ -0,0 +1,65 @@
+package com.example.record.repository;
+
+import com.example.record.model.Product;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 商品的持久化存储。ProductRepository 在内存中维护索引，只通过这里读写磁盘。
+ */
+interface ProductStore {
+
+    /**
+     * 读出全部商品交给 sink，返回已使用过的最大 id。
+     */
+    long loadAll(Consumer<Product> sink);
+
+    void write(Product p);
+
+    /**
+     * 批量写入时使用：先提交全部商品再一起等待。默认同步写入。
+     */
+    default CompletableFuture<Void> writeAsync(Product p) {
+        write(p);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 只有库存（和随之递增的版本号）发生变化时调用，存储可以只更新这两个字段。
+     */
+    void writeStock(Product p);
+
+    /**
+     * 批量修改库存时使用：先提交全部商品再一起等待，写入失败时 future 以异常完成。默认同步写入。
+     */
+    default CompletableFuture<Void> writeStockAsync(Product p) {
+        try {
+            writeStock(p);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 商品换了分类、新数据已经写入之后调用，清理按旧分类存放的副本。
+     */
+    void moved(Product old);
+
+    void delete(Product p);
+
+    void deleteAll();
+
+    void close();
+
+    /**
+     * 同一商品有多份数据时（换分类时在删除旧文件前崩溃）判断 p 是否比 other 新：版本号大的为准，
+     * 版本号相同时取分类 id 小的，结果与加载顺序无关。
+     */
+    static boolean isNewerCopy(Product p, Product other) {
+        long pv = p.getVersion() != null ? p.getVersion() : 0L;
+        long ov = other.getVersion() != null ? other.getVersion() : 0L;
+        return pv != ov ? pv > ov : p.getCategoryId() < other.getCategoryId();
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.record.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 仓库层指标：文件读写、JSON 解析/序列化、库存日志、文件写入日志、图片上传、商品搜索耗时，以及库存变动计数。
+ * 通过 /actuator/prometheus 暴露。
+ */
+@Component
+public class RepositoryMetrics {
+
+    final Timer fileRead;
+    final Timer fileWrite;
+    final Timer jsonParse;
+    final Timer jsonSerialize;
+    final Timer journalAppend;
+    final Timer imageUpload;
+    final Timer productSearch;
+    final Timer writeLogFlush;
+
+    final Counter stockIn;
+    final Counter stockOut;
+    final Counter stockSet;
+    final Counter stockRejected;
+    final Counter imageDeduplicated;
+    final Counter corruptFiles;
+    final DistributionSummary writeLogBatch;
+
+    public RepositoryMetrics(MeterRegistry registry) {
+        fileRead = timer(registry, "inventory.repository.file", "read");
+        fileWrite = timer(registry, "inventory.repository.file", "write");
+        jsonParse = timer(registry, "inventory.repository.json", "parse");
+        jsonSerialize = timer(registry, "inventory.repository.json", "serialize");
+        journalAppend = timer(registry, "inventory.repository.journal", "append");
+        imageUpload = timer(registry, "inventory.repository.image", "upload");
+        productSearch = timer(registry, "inventory.repository.product", "search");
+        writeLogFlush = timer(registry, "inventory.repository.writelog", "flush");
+
+        stockIn = Counter.builder("inventory.stock.movements").tag("op", "in")
+                .description("入库次数").register(registry);
+        stockOut = Counter.builder("inventory.stock.movements").tag("op", "out")
+                .description("出库次数").register(registry);
+        stockSet = Counter.builder("inventory.stock.movements").tag("op", "set")
+                .description("直接设置库存次数").register(registry);
+        stockRejected = Counter.builder("inventory.stock.rejected").tag("reason", "insufficient")
+                .description("因库存不足被拒绝的出库次数").register(registry);
+        imageDeduplicated = Counter.builder("inventory.image.deduplicated")
+                .description("上传内容已存在、未重复保存的图片数").register(registry);
+        corruptFiles = Counter.builder("inventory.repository.corrupt")
+                .description("启动时无法解析、已移到 .corrupt 的 JSON 文件数").register(registry);
+        writeLogBatch = DistributionSummary.builder("inventory.repository.writelog.batch")
+                .description("一次文件写入日志 fsync 合并的记录数").register(registry);
+    }
+
+    private static Timer timer(MeterRegistry registry, String name, String op) {
+        return Timer.builder(name)
+                .tag("op", op)
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    static void record(Timer timer, long startNanos) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
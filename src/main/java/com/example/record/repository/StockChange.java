@@ -0,0 +1,73 @@
+package com.example.record.repository;
+
+import com.example.record.model.Product;
+
+/**
+ * 一次库存变动的结果，由 ProductRepository 在商品锁内计算得出。
+ * 带期望版本号时，版本不一致返回 CONFLICT，不做任何修改。
+ */
+public class StockChange {
+
+    public enum Status {
+        OK,
+        NOT_FOUND,
+        INSUFFICIENT_STOCK,
+        // 批量操作中 op 或数量不合法
+        INVALID,
+        // 商品版本号与期望的不一致
+        CONFLICT,
+        // 批量操作中该商品写入存储失败，本行没有生效
+        WRITE_FAILED
+    }
+
+    private final Status status;
+    private final Product product;
+    private final long oldStock;
+
+    private StockChange(Status status, Product product, long oldStock) {
+        this.status = status;
+        this.product = product;
+        this.oldStock = oldStock;
+    }
+
+    static StockChange ok(Product product, long oldStock) {
+        return new StockChange(Status.OK, product, oldStock);
+    }
+
+    static StockChange notFound() {
+        return new StockChange(Status.NOT_FOUND, null, 0);
+    }
+
+    static StockChange invalid() {
+        return new StockChange(Status.INVALID, null, 0);
+    }
+
+    static StockChange insufficient(Product product) {
+        return new StockChange(Status.INSUFFICIENT_STOCK, product, product.getStock());
+    }
+
+    static StockChange conflict(Product product) {
+        return new StockChange(Status.CONFLICT, product, product.getStock());
+    }
+
+    static StockChange writeFailed(Product product) {
+        return new StockChange(Status.WRITE_FAILED, product, product.getStock());
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    // 变动后的商品；库存不足或版本冲突时为当前商品
+    public Product getProduct() {
+        return product;
+    }
+
+    public long getOldStock() {
+        return oldStock;
+    }
+}
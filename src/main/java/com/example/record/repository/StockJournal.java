@@ -0,0 +1,306 @@
+package com.example.record.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 库存变动日志：每条记录固定 32 字节 (productId, delta, stockAfter, timestamp)，
+ * 顺序追加到 data/journal/stock-{generation}.log。
+ * 并发的 append 由后台线程合并成一次 write + fsync（组提交），调用方在自己的记录落盘后返回。
+ * appendAsync 只把记录放进缓冲区，返回的 future 在该记录 fsync 后由后台线程完成，调用方不占用线程等待。
+ * <p>
+ * 锁用 ReentrantLock 而不是 synchronized：虚拟线程在 synchronized 中阻塞会占住载体线程。
+ */
+class StockJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(StockJournal.class);
+
+    static final int RECORD_SIZE = 32;
+    private static final String PREFIX = "stock-";
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 有新记录或者关闭时通知后台线程
+    private final Condition changed = lock.newCondition();
+    // 保护 channel 的写入和切换；clear() 在请求线程上切换日志，同样不能用 synchronized
+    private final ReentrantLock ioLock = new ReentrantLock();
+
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(RECORD_SIZE * 1024);
+    private long appendedSeq;
+    private long syncedSeq;
+    // 等待落盘的 future，按 seq 递增排列
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel channel;
+    private long generation;
+    private final Thread flusher;
+
+    StockJournal(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            List<Path> existing = listGenerations();
+            generation = existing.isEmpty() ? 1 : generationOf(existing.get(existing.size() - 1)) + 1;
+            channel = open(generation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        flusher = new Thread(this::flushLoop, "stock-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 追加一条记录，阻塞到该记录已 fsync。
+     */
+    void append(long productId, long delta, long stockAfter) {
+        try {
+            appendAsync(productId, delta, stockAfter).join();
+        } catch (CompletionException e) {
+            throw new UncheckedIOException("写入库存日志失败", (IOException) e.getCause());
+        }
+    }
+
+    /**
+     * 追加一条记录，不等待落盘。返回的 future 在该记录 fsync 后完成，写入失败时以 IOException 异常完成。
+     * 同一调用方先后追加的记录按追加顺序写入。
+     */
+    CompletableFuture<Void> appendAsync(long productId, long delta, long stockAfter) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("库存日志已关闭");
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (pending.remaining() < RECORD_SIZE) {
+                pending = grow(pending);
+                spare = ByteBuffer.allocate(pending.capacity());
+            }
+            pending.putLong(productId).putLong(delta).putLong(stockAfter).putLong(System.currentTimeMillis());
+            CompletableFuture<Void> synced = new CompletableFuture<>();
+            waiters.add(new Waiter(++appendedSeq, synced));
+            changed.signalAll();
+            return synced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long target;
+            lock.lock();
+            try {
+                while (appendedSeq == syncedSeq && !closed) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (appendedSeq == syncedSeq) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                target = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            batch.flip();
+            try {
+                ioLock.lock();
+                try {
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    channel.force(false);
+                } finally {
+                    ioLock.unlock();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            batch.clear();
+
+            List<Waiter> done = new ArrayList<>();
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    syncedSeq = target;
+                }
+                // 失败时所有等待中的记录都不会再写入
+                while (!waiters.isEmpty() && (error != null || waiters.peek().seq <= target)) {
+                    done.add(waiters.poll());
+                }
+            } finally {
+                lock.unlock();
+            }
+            // 在锁外完成 future，回调（响应输出等）不阻塞新的 append
+            for (Waiter w : done) {
+                if (error != null) {
+                    w.future.completeExceptionally(error);
+                } else {
+                    w.future.complete(null);
+                }
+            }
+            if (error != null) {
+                log.error("库存日志写入失败", error);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 切换到新的日志文件，返回切换前的所有旧日志文件。
+     * 调用方把旧文件中的状态写入快照后即可删除这些文件。
+     */
+    List<Path> rotate() {
+        ioLock.lock();
+        try {
+            List<Path> old = listGenerations();
+            channel.force(false);
+            channel.close();
+            generation++;
+            channel = open(generation);
+            return old;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * 清空日志：等已追加的记录写完，再切换到新文件并删除全部旧文件。
+     * 调用方要保证期间没有新的追加，否则新记录可能落在被删除的文件中。
+     */
+    void clear() {
+        CompletableFuture<Void> last;
+        lock.lock();
+        try {
+            last = waiters.isEmpty() ? null : waiters.peekLast().future;
+        } finally {
+            lock.unlock();
+        }
+        if (last != null) {
+            // future 按追加顺序完成，等最后一条即可；写入失败的记录不会再写入，同样可以删除
+            last.exceptionally(e -> null).join();
+        }
+        for (Path file : rotate()) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 按写入顺序读出全部日志记录，每条记录为 {productId, delta, stockAfter, timestamp}。
+     * 末尾不完整的记录（写到一半崩溃）会被忽略。
+     */
+    List<long[]> readAll() {
+        List<long[]> records = new ArrayList<>();
+        try {
+            for (Path file : listGenerations()) {
+                ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+                while (buf.remaining() >= RECORD_SIZE) {
+                    records.add(new long[] { buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong() });
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return records;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+            ioLock.lock();
+            try {
+                channel.close();
+            } finally {
+                ioLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.warn("关闭库存日志失败: {}", e.getMessage());
+        }
+    }
+
+    private FileChannel open(long gen) throws IOException {
+        return FileChannel.open(dir.resolve(String.format("%s%020d%s", PREFIX, gen, SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> listGenerations() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> {
+                String name = f.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted((a, b) -> Long.compare(generationOf(a), generationOf(b))).toList();
+        }
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static final class Waiter {
+        final long seq;
+        final CompletableFuture<Void> future;
+
+        Waiter(long seq, CompletableFuture<Void> future) {
+            this.seq = seq;
+            this.future = future;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf) {
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+}
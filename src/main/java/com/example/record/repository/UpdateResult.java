@@ -0,0 +1,46 @@
+package com.example.record.repository;
+
+/**
+ * 条件更新（带期望版本号）的结果。版本不一致时不写入，value 为当前数据，调用方据此提示用户或重新读取后重试。
+ */
+public class UpdateResult<T> {
+
+    public enum Status {
+        OK,
+        NOT_FOUND,
+        CONFLICT
+    }
+
+    private final Status status;
+    private final T value;
+
+    private UpdateResult(Status status, T value) {
+        this.status = status;
+        this.value = value;
+    }
+
+    static <T> UpdateResult<T> ok(T value) {
+        return new UpdateResult<>(Status.OK, value);
+    }
+
+    static <T> UpdateResult<T> notFound() {
+        return new UpdateResult<>(Status.NOT_FOUND, null);
+    }
+
+    static <T> UpdateResult<T> conflict(T current) {
+        return new UpdateResult<>(Status.CONFLICT, current);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    // 更新后的数据；版本冲突时为当前数据
+    public T getValue() {
+        return value;
+    }
+}
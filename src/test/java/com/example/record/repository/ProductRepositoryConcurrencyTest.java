@@ -0,0 +1,141 @@
+package com.example.record.repository;
+
+import com.example.record.model.Category;
+import com.example.record.model.Product;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 多线程并发入库/出库同一商品：不超卖，最终库存和分类总库存与成功的变动一致。
+ */
+class ProductRepositoryConcurrencyTest {
+
+    private static final int THREADS = 16;
+
+    @TempDir
+    Path dir;
+
+    private FileWriteLog writeLog;
+    private MovementHistory movements;
+    private CategoryRepository categoryRepo;
+    private ProductRepository productRepo;
+
+    private void open(String storageMode) throws IOException {
+        String dataDir = dir.toString();
+        RepositoryMetrics metrics = new RepositoryMetrics(new SimpleMeterRegistry());
+        ImageStore imageStore = new ImageStore(dir.resolve("uploads").toString(), DataSize.ofMegabytes(10), metrics);
+        ChangeLog changeLog = new ChangeLog(new DataVersion(), 10000);
+        writeLog = new FileWriteLog(dataDir, 60, metrics);
+        categoryRepo = new CategoryRepository(60, 1, dataDir, imageStore, changeLog, writeLog, metrics);
+        movements = new MovementHistory(dataDir, 8192, 60, 400, 31);
+        productRepo = new ProductRepository(categoryRepo, imageStore, storageMode, 60, 1, dataDir,
+                changeLog, movements, writeLog, metrics);
+    }
+
+    @AfterEach
+    void close() {
+        productRepo.close();
+        categoryRepo.close();
+        movements.close();
+        writeLog.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "json", "journal", "mmap" })
+    void concurrentOutNeverOversells(String storageMode) throws Exception {
+        open(storageMode);
+        Category category = categoryRepo.save("c", "");
+        Product product = productRepo.save(category.getId(), "p", "", 100L);
+
+        // 每个线程出库 20 次，共 320 次，只有 100 次能成功
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        runConcurrently(() -> {
+            for (int i = 0; i < 20; i++) {
+                StockChange r = productRepo.changeStock(product.getId(), -1);
+                if (r.isOk()) {
+                    accepted.incrementAndGet();
+                    assertTrue(r.getProduct().getStock() >= 0);
+                } else {
+                    assertEquals(StockChange.Status.INSUFFICIENT_STOCK, r.getStatus());
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(100, accepted.get());
+        assertEquals(THREADS * 20 - 100, rejected.get());
+        assertEquals(0L, productRepo.findById(product.getId()).getStock());
+        assertEquals(0L, categoryRepo.findById(category.getId()).getTotalCount());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "json", "journal", "mmap" })
+    void concurrentInAndOutKeepExactStock(String storageMode) throws Exception {
+        open(storageMode);
+        Category category = categoryRepo.save("c", "");
+        Product product = productRepo.save(category.getId(), "p", "", 10L);
+        Product other = productRepo.save(category.getId(), "q", "", 5L);
+
+        // 入库 2、出库 3 交替进行，出库可能因库存不足失败，只累计成功的变动
+        AtomicLong applied = new AtomicLong();
+        runConcurrently(() -> {
+            for (int i = 0; i < 50; i++) {
+                long delta = i % 2 == 0 ? 2 : -3;
+                StockChange r = productRepo.changeStock(product.getId(), delta);
+                if (r.isOk()) {
+                    applied.addAndGet(delta);
+                    assertEquals(r.getOldStock() + delta, r.getProduct().getStock());
+                } else {
+                    assertEquals(StockChange.Status.INSUFFICIENT_STOCK, r.getStatus());
+                }
+            }
+        });
+
+        long stock = productRepo.findById(product.getId()).getStock();
+        assertTrue(stock >= 0);
+        assertEquals(10L + applied.get(), stock);
+        assertEquals(stock + 5L, categoryRepo.findById(category.getId()).getTotalCount());
+        assertEquals(5L, productRepo.findById(other.getId()).getStock());
+    }
+
+    // 所有线程就绪后同时开始，任一线程的断言失败都会在 get() 时抛出
+    private static void runConcurrently(Runnable task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}